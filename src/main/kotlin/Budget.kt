@@ -0,0 +1,155 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+data class StepUsage(val cpuNanos: Long, val allocatedBytes: Long)
+
+class StepBudgetExceeded : TestingStopped("Step budget exceeded")
+
+private val threadBean = ManagementFactory.getThreadMXBean()
+private val allocationBean = threadBean as? com.sun.management.ThreadMXBean
+
+/*
+ * The CPU time and allocation budget for the submission invocations made during one step. Usage is measured on the
+ * testing thread before and after each invocation. While an invocation runs a watchdog samples it, interrupting the
+ * testing thread once a budget is exceeded and causing captured reads and writes to throw. Submission code that
+ * neither blocks nor performs captured IO runs to completion, but is still marked as over budget.
+ */
+class StepBudget internal constructor(private val cpuBudget: Long, private val allocationBudget: Long) {
+    init {
+        require(cpuBudget == -1L || threadBean.isThreadCpuTimeSupported) {
+            "Step CPU budgets require thread CPU time measurement"
+        }
+        require(allocationBudget == -1L || allocationBean?.isThreadAllocatedMemorySupported == true) {
+            "Step allocation budgets require thread allocation measurement"
+        }
+    }
+
+    private var thread: Thread? = null
+    private var interrupted = false
+
+    @Volatile
+    private var startCpu = 0L
+
+    @Volatile
+    private var startAllocated = 0L
+
+    @Volatile
+    private var cpuUsed = 0L
+
+    @Volatile
+    private var allocated = 0L
+
+    @Volatile
+    var exceeded = false
+        private set
+
+    val usage: StepUsage
+        get() = StepUsage(cpuUsed, allocated)
+
+    private fun cpuTime(thread: Thread) = if (cpuBudget == -1L) {
+        0L
+    } else {
+        threadBean.getThreadCpuTime(thread.id)
+    }
+
+    private fun allocatedBytes(thread: Thread) = if (allocationBudget == -1L) {
+        0L
+    } else {
+        allocationBean!!.getThreadAllocatedBytes(thread.id)
+    }
+
+    private fun over(cpu: Long, bytes: Long) = (cpuBudget != -1L && cpu > cpuBudget) ||
+        (allocationBudget != -1L && bytes > allocationBudget)
+
+    internal fun reset() {
+        cpuUsed = 0
+        allocated = 0
+        exceeded = false
+    }
+
+    internal fun <T> track(run: () -> T): T {
+        val current = Thread.currentThread()
+        startCpu = cpuTime(current)
+        startAllocated = allocatedBytes(current)
+        synchronized(this) {
+            thread = current
+            interrupted = false
+        }
+        BudgetWatchdog.add(this)
+        val previous = currentStepBudget.get()
+        currentStepBudget.set(this)
+        try {
+            return run()
+        } finally {
+            currentStepBudget.set(previous)
+            BudgetWatchdog.remove(this)
+            val wasInterrupted = synchronized(this) {
+                thread = null
+                interrupted
+            }
+            cpuUsed += cpuTime(current) - startCpu
+            allocated += allocatedBytes(current) - startAllocated
+            if (over(cpuUsed, allocated)) {
+                exceeded = true
+            }
+            if (wasInterrupted) {
+                // Clear the watchdog's own interrupt so that it is not mistaken for a request to stop testing
+                Thread.interrupted()
+            }
+        }
+    }
+
+    internal fun sample() = synchronized(this) {
+        val current = thread ?: return
+        if (!exceeded &&
+            over(cpuUsed + cpuTime(current) - startCpu, allocated + allocatedBytes(current) - startAllocated)
+        ) {
+            exceeded = true
+            // An interrupt that was already pending belongs to the caller, so is left for it to see
+            if (!current.isInterrupted) {
+                interrupted = true
+                current.interrupt()
+            }
+        }
+    }
+
+    internal fun check() {
+        if (exceeded) {
+            throw StepBudgetExceeded()
+        }
+    }
+
+    companion object {
+        internal fun from(settings: Settings) =
+            if (settings.stepCpuBudget == -1L && settings.stepAllocationBudget == -1L) {
+                null
+            } else {
+                StepBudget(settings.stepCpuBudget, settings.stepAllocationBudget)
+            }
+    }
+}
+
+internal val currentStepBudget = ThreadLocal<StepBudget?>()
+
+private object BudgetWatchdog {
+    private const val PERIOD_MILLISECONDS = 10L
+
+    private val running = ConcurrentHashMap.newKeySet<StepBudget>()
+
+    init {
+        deadlineScheduler.scheduleAtFixedRate({
+            // An exception escaping a periodic task would cancel it
+            @Suppress("TooGenericExceptionCaught", "SwallowedException")
+            try {
+                running.forEach { it.sample() }
+            } catch (_: Exception) {
+            }
+        }, PERIOD_MILLISECONDS, PERIOD_MILLISECONDS, TimeUnit.MILLISECONDS)
+    }
+
+    fun add(budget: StepBudget) = running.add(budget)
+    fun remove(budget: StepBudget) = running.remove(budget)
+}
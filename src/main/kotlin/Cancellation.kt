@@ -0,0 +1,60 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledThreadPoolExecutor
+
+/*
+ * Requests that a test run stop early. Submission.test checks the token between steps, and captured reads and writes
+ * check it during steps, so submissions that are printing or reading input stop promptly even if they ignore
+ * interrupts. A cancelled run returns the results of the steps that completed with timeout set.
+ */
+class CancellationToken {
+    @Volatile
+    var cancelled = false
+        private set
+
+    fun cancel() {
+        cancelled = true
+    }
+
+    internal fun check() {
+        if (cancelled) {
+            throw TestingCancelled()
+        }
+    }
+}
+
+/*
+ * Thrown from captured reads and writes to stop a submission call partway through. An Error rather than an Exception
+ * so that submission code catching Exception does not swallow it.
+ */
+sealed class TestingStopped(message: String) : Error(message)
+
+class TestingCancelled : TestingStopped("Testing was cancelled")
+
+internal val currentCancellation = ThreadLocal<CancellationToken?>()
+
+// Virtual threads are only available on Java 21 and later, so fall back to a daemon thread per task
+internal val asyncTestingExecutor: Executor by lazy {
+    try {
+        Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as Executor
+    } catch (_: ReflectiveOperationException) {
+        Executor { task ->
+            Thread(task, "jenisol-async").apply {
+                isDaemon = true
+            }.start()
+        }
+    }
+}
+
+internal val deadlineScheduler: ScheduledExecutorService by lazy {
+    ScheduledThreadPoolExecutor(1) { task ->
+        Thread(task, "jenisol-deadlines").apply {
+            isDaemon = true
+        }
+    }.apply {
+        removeOnCancelPolicy = true
+    }
+}
@@ -0,0 +1,110 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import edu.illinois.cs.cs125.jenisol.core.generators.boxType
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Constructor
+import java.lang.reflect.Executable
+import java.lang.reflect.Method
+
+/*
+ * Invokes a method or constructor through a MethodHandle adapted to (Object receiver, Object[] parameters)Object.
+ * Unlike Method.invoke, exceptions thrown by the executable propagate directly rather than wrapped in an
+ * InvocationTargetException.
+ */
+class Invoker(val executable: Executable) {
+    val parameterTypes: Array<Class<*>> = executable.parameterTypes.map { it.boxType() }.toTypedArray()
+    private val primitiveParameters = executable.parameterTypes.map { it.isPrimitive }.toBooleanArray()
+
+    private val handle: MethodHandle = run {
+        executable.isAccessible = true
+        when (executable) {
+            is Method -> lookup.unreflect(executable)
+            is Constructor<*> -> lookup.unreflectConstructor(executable)
+        }.asFixedArity().let { handle ->
+            if (executable is Constructor<*> || executable.isStatic()) {
+                MethodHandles.dropArguments(handle, 0, Any::class.java)
+            } else {
+                handle
+            }
+        }.asType(MethodType.genericMethodType(executable.parameterCount + 1))
+            .asSpreader(Array<Any?>::class.java, executable.parameterCount)
+    }
+
+    fun checkParameters(parameters: Array<Any?>) {
+        check(parameters.size == parameterTypes.size) {
+            "Expected ${parameterTypes.size} parameters but got ${parameters.size}"
+        }
+        for (i in parameters.indices) {
+            val parameter = parameters[i]
+            val mismatched = if (parameter == null) {
+                primitiveParameters[i]
+            } else {
+                !parameterTypes[i].isAssignableFrom(parameter::class.java)
+            }
+            check(!mismatched) { "Can't assign ${executable.parameterTypes[i]} from $parameter" }
+        }
+    }
+
+    operator fun invoke(receiver: Any?, parameters: Array<Any?>): Any? = handle.invokeExact(receiver, parameters)
+
+    companion object {
+        private val lookup = MethodHandles.lookup()
+    }
+}
+
+/*
+ * Everything about testing one solution executable against a submission that does not change from step to step,
+ * resolved once when the Submission is created.
+ */
+class PlannedExecutable(
+    val solutionExecutable: Executable,
+    val submissionExecutable: Executable,
+    val isBoth: Boolean,
+    val solution: Invoker,
+    val submission: Invoker,
+    val submissionCompanion: Any?,
+    val methodType: TestResult.Type,
+    val strictOutput: Boolean,
+    val filter: Invoker?,
+    val verifier: Invoker?,
+)
+
+internal fun Submission.createExecutionPlan(): Map<Executable, PlannedExecutable> {
+    val methodType = if (solution.skipReceiver || solution.fauxStatic) {
+        TestResult.Type.STATIC_METHOD
+    } else {
+        TestResult.Type.METHOD
+    }
+    val invokers = mutableMapOf<Executable, Invoker>()
+    fun Executable.invoker() = invokers.getOrPut(this) { Invoker(this) }
+
+    return (submissionExecutables.keys + solution.bothExecutables).associateWith { solutionExecutable ->
+        val isBoth = solutionExecutable.isAnnotationPresent(Both::class.java)
+        val submissionExecutable = if (isBoth) {
+            solutionExecutable
+        } else {
+            submissionExecutables[solutionExecutable] ?: error("couldn't find a submission method that should exist")
+        }
+        check(solutionExecutable::class.java == submissionExecutable::class.java) {
+            "solution and submission executable are not the same type"
+        }
+        PlannedExecutable(
+            solutionExecutable,
+            submissionExecutable,
+            isBoth,
+            solutionExecutable.invoker(),
+            submissionExecutable.invoker(),
+            if (solutionExecutable.isStatic() && submissionExecutable.isKotlinCompanion()) {
+                companionInstance
+            } else {
+                null
+            },
+            methodType,
+            solutionExecutable.annotations.find { it is Configure }?.let { (it as Configure).strictOutput } ?: false,
+            solution.filters[solutionExecutable]?.invoker(),
+            solution.verifiers[solutionExecutable]?.invoker(),
+        )
+    }
+}
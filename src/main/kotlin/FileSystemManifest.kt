@@ -0,0 +1,127 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import java.io.ByteArrayOutputStream
+import java.nio.file.FileSystem
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.HexFormat
+
+/*
+ * The files and directories left in the in-memory filesystem after a call, with the size and a hash of the contents
+ * of each file. Manifests left by the solution and submission are compared by their hashes. The filesystem is reused
+ * by later calls, so each file is read once as it is hashed, and only the prefix that explaining a difference shows is
+ * kept.
+ */
+class FileSystemManifest private constructor(private val entries: Map<String, Entry>) {
+    private class Entry(val size: Long, val hash: String?, val prefix: ByteArray?)
+
+    val paths: Set<String>
+        get() = entries.keys
+
+    // Null for directories
+    fun hash(path: String) = entries[path]?.hash
+
+    // Null for directories
+    fun size(path: String) = entries[path]?.takeIf { it.hash != null }?.size
+
+    private val hashes = entries.mapValues { it.value.hash }
+
+    internal fun differingPaths(other: FileSystemManifest) = (paths + other.paths).filter { path ->
+        path !in paths || path !in other.paths || hash(path) != other.hash(path)
+    }.sorted()
+
+    private fun describe(who: String, path: String): String {
+        if (path !in paths) {
+            return "$who did not leave $path"
+        }
+        val entry = entries.getValue(path)
+        val text = entry.prefix?.decodeToString() ?: return "$who left a directory at $path"
+        val length = if (entry.size > entry.prefix.size) {
+            "(length ${entry.size} bytes, first $MAX_SHOWN_LENGTH characters shown)"
+        } else if (text.length > MAX_SHOWN_LENGTH) {
+            "(length ${text.length}, first $MAX_SHOWN_LENGTH characters shown)"
+        } else {
+            "(length ${text.length})"
+        }
+        return "$who left $path containing:\n-->\n${text.take(MAX_SHOWN_LENGTH)}<-- $length"
+    }
+
+    internal fun explain(submission: FileSystemManifest): String {
+        val differing = differingPaths(submission)
+        val shown = differing.take(MAX_SHOWN_PATHS).map { path ->
+            describe("Solution", path) + "\n" + submission.describe("Submission", path)
+        }
+        val more = if (differing.size > MAX_SHOWN_PATHS) {
+            listOf("${differing.size - MAX_SHOWN_PATHS} more paths differ")
+        } else {
+            listOf()
+        }
+        return (listOf("Solution and submission left different files:") + shown + more).joinToString("\n")
+    }
+
+    override fun equals(other: Any?) = this === other || (other is FileSystemManifest && hashes == other.hashes)
+
+    override fun hashCode() = hashes.hashCode()
+
+    override fun toString() = "FileSystemManifest($hashes)"
+
+    companion object {
+        private const val MAX_SHOWN_PATHS = 8
+        private const val MAX_SHOWN_LENGTH = 1024
+
+        // Enough bytes to decode the characters shown from any UTF-8 text
+        private const val MAX_PREFIX_SIZE = MAX_SHOWN_LENGTH * 4
+        private const val BUFFER_SIZE = 8192
+
+        private val hex = HexFormat.of()
+
+        private fun entry(path: Path, digest: MessageDigest, buffer: ByteArray): Entry {
+            val prefix = ByteArrayOutputStream()
+            var size = 0L
+            Files.newInputStream(path).use { input ->
+                while (true) {
+                    val read = input.read(buffer)
+                    if (read == -1) {
+                        break
+                    }
+                    digest.update(buffer, 0, read)
+                    prefix.write(buffer, 0, read.coerceAtMost(MAX_PREFIX_SIZE - prefix.size()))
+                    size += read
+                }
+            }
+            return Entry(size, hex.formatHex(digest.digest()), prefix.toByteArray())
+        }
+
+        internal fun of(fileSystem: FileSystem): FileSystemManifest {
+            val root = fileSystem.getPath("/")
+            val digest = MessageDigest.getInstance("SHA-256")
+            val buffer = ByteArray(BUFFER_SIZE)
+            val entries = Files.walk(root).use { paths ->
+                paths.iterator().asSequence().filter { it != root }.associate { path ->
+                    path.toString() to if (Files.isDirectory(path)) {
+                        Entry(0, null, null)
+                    } else {
+                        entry(path, digest, buffer)
+                    }
+                }
+            }
+            return FileSystemManifest(entries)
+        }
+    }
+}
+
+internal val currentSnapshotFileSystem = ThreadLocal<Boolean?>()
+
+internal fun <T> snapshotFileSystem(enabled: Boolean, run: () -> T): T {
+    if (!enabled) {
+        return run()
+    }
+    val previous = currentSnapshotFileSystem.get()
+    currentSnapshotFileSystem.set(true)
+    try {
+        return run()
+    } finally {
+        currentSnapshotFileSystem.set(previous)
+    }
+}
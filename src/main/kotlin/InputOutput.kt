@@ -4,12 +4,22 @@ package edu.illinois.cs.cs125.jenisol.core
 
 import com.google.common.jimfs.Configuration
 import com.google.common.jimfs.Jimfs
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.io.PrintStream
+import java.nio.charset.Charset
 import java.nio.file.FileSystem
+import java.nio.file.Files
+import java.nio.file.LinkOption.NOFOLLOW_LINKS
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.util.Arrays
+import java.util.Locale
+import java.util.Objects
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 import kotlin.io.path.createDirectories
@@ -18,117 +28,1074 @@ import kotlin.io.path.writeBytes
 typealias CaptureOutputControlInput =
     (stdin: List<String>, fileSystem: Map<String, ByteArray?>, run: () -> Any?) -> CapturedResult
 
-data class CapturedResult(
+internal interface CapturedOutput {
+    val stdout: String
+    val stderr: String
+    val stdin: String
+    val interleavedInputOutput: String
+
+    // Called once the output will no longer be read, so that its buffers can be reused
+    fun release() {}
+}
+
+private class DecodedOutput(
+    override val stdout: String,
+    override val stderr: String,
+    override val stdin: String,
+    override val interleavedInputOutput: String,
+) : CapturedOutput
+
+/*
+ * The result of a captured call. The built-in capture functions keep output as bytes and decode it on first access,
+ * since the output of most calls, including every execution copy, is never read. When output is limited, stdoutHash
+ * and stderrHash cover everything written to each stream, including truncated output, and are 0 otherwise.
+ */
+@Suppress("LongParameterList")
+class CapturedResult internal constructor(
     val returned: Any?,
     val threw: Throwable?,
-    val stdout: String,
-    val stderr: String,
-    val stdin: String,
-    val interleavedInputOutput: String,
+    private val output: CapturedOutput,
     val truncatedLines: Int,
-    val tag: Any? = null,
-)
+    val tag: Any?,
+    val stoppedAtDivergence: Boolean,
+    val fileSystem: FileSystemManifest?,
+    val stdoutHash: Long,
+    val stderrHash: Long,
+) {
+    constructor(
+        returned: Any?,
+        threw: Throwable?,
+        stdout: String,
+        stderr: String,
+        stdin: String,
+        interleavedInputOutput: String,
+        truncatedLines: Int,
+        tag: Any? = null,
+        stoppedAtDivergence: Boolean = false,
+        fileSystem: FileSystemManifest? = null,
+        stdoutHash: Long = 0,
+        stderrHash: Long = 0,
+    ) : this(
+        returned,
+        threw,
+        DecodedOutput(stdout, stderr, stdin, interleavedInputOutput),
+        truncatedLines,
+        tag,
+        stoppedAtDivergence,
+        fileSystem,
+        stdoutHash,
+        stderrHash,
+    )
+
+    val stdout: String
+        get() = output.stdout
+    val stderr: String
+        get() = output.stderr
+    val stdin: String
+        get() = output.stdin
+    val interleavedInputOutput: String
+        get() = output.interleavedInputOutput
+
+    internal fun withoutOutput(): CapturedResult {
+        output.release()
+        return CapturedResult(
+            returned,
+            threw,
+            DecodedOutput("", "", "", ""),
+            truncatedLines,
+            tag,
+            stoppedAtDivergence,
+            null,
+            stdoutHash,
+            stderrHash,
+        )
+    }
+
+    fun copy(
+        returned: Any? = this.returned,
+        threw: Throwable? = this.threw,
+        stdout: String = this.stdout,
+        stderr: String = this.stderr,
+        stdin: String = this.stdin,
+        interleavedInputOutput: String = this.interleavedInputOutput,
+        truncatedLines: Int = this.truncatedLines,
+        tag: Any? = this.tag,
+        stoppedAtDivergence: Boolean = this.stoppedAtDivergence,
+        fileSystem: FileSystemManifest? = this.fileSystem,
+        stdoutHash: Long = this.stdoutHash,
+        stderrHash: Long = this.stderrHash,
+    ) = CapturedResult(
+        returned,
+        threw,
+        stdout,
+        stderr,
+        stdin,
+        interleavedInputOutput,
+        truncatedLines,
+        tag,
+        stoppedAtDivergence,
+        fileSystem,
+        stdoutHash,
+        stderrHash,
+    )
+
+    private fun fields() = listOf(
+        returned,
+        threw,
+        stdout,
+        stderr,
+        stdin,
+        interleavedInputOutput,
+        truncatedLines,
+        tag,
+        stoppedAtDivergence,
+        fileSystem,
+        stdoutHash,
+        stderrHash,
+    )
+
+    override fun equals(other: Any?) = this === other || (other is CapturedResult && fields() == other.fields())
+
+    override fun hashCode() = fields().hashCode()
+
+    override fun toString() = "CapturedResult(returned=$returned, threw=$threw, stdout=$stdout, stderr=$stderr, " +
+        "stdin=$stdin, interleavedInputOutput=$interleavedInputOutput, truncatedLines=$truncatedLines, tag=$tag, " +
+        "stoppedAtDivergence=$stoppedAtDivergence, fileSystem=$fileSystem, stdoutHash=$stdoutHash, " +
+        "stderrHash=$stderrHash)"
+}
 
 private val outputLock = ReentrantLock()
 
+private const val NEWLINE = '\n'.code.toByte()
+
+private const val OUTPUT_HASH_BASIS = -0x340d631b7bdddcdbL
+private const val OUTPUT_HASH_PRIME = 0x100000001b3L
+
+// 64-bit FNV-1a, extended by each write
+private fun Long.hashOutput(b: ByteArray, off: Int, len: Int): Long {
+    var hash = this
+    for (i in off until off + len) {
+        hash = (hash xor (b[i].toLong() and BYTE_MASK)) * OUTPUT_HASH_PRIME
+    }
+    return hash
+}
+
+private const val BYTE_MASK = 0xffL
+
+/*
+ * Provides the in-memory filesystem for the current capture. It is created on first access, so calls that never touch
+ * files do not pay for one, and taken from a pool rather than created for every call.
+ */
+private class CapturedFileSystem : ThreadLocal<FileSystem>() {
+    private val files = ThreadLocal<Map<String, ByteArray?>?>()
+    private val taken = ThreadLocal<PooledFileSystem?>()
+
+    override fun get(): FileSystem? = super.get() ?: files.get()?.let { contents ->
+        FileSystemPool.take(contents).let {
+            taken.set(it)
+            set(it.fileSystem)
+            it.fileSystem
+        }
+    }
+
+    fun open(contents: Map<String, ByteArray?>) = files.set(contents)
+
+    fun manifest() = FileSystemManifest.of(get()!!)
+
+    fun close() {
+        val current = super.get()
+        val pooled = taken.get()
+        if (pooled != null && current === pooled.fileSystem) {
+            FileSystemPool.release(pooled)
+        } else {
+            current?.close()
+        }
+        files.remove()
+        taken.remove()
+        remove()
+    }
+}
+
+private val capturedFileSystem = CapturedFileSystem()
+
 @JvmField
-var filesystem = ThreadLocal<FileSystem>()
+var filesystem: ThreadLocal<FileSystem> = capturedFileSystem
 
-fun defaultCaptureOutputControlInput(
-    stdin: List<String> = listOf(),
-    fileSystem: Map<String, ByteArray?> = mapOf(),
-    run: () -> Any?,
-): CapturedResult = outputLock.withLock {
-    val ioBytes = mutableListOf<Byte>()
-
-    val newFileSystem = Jimfs.newFileSystem(Configuration.unix()).also { jimfsFileSystem ->
-        fileSystem.forEach { (filename, contents) ->
-            jimfsFileSystem.getPath(filename).also { path ->
-                if (contents == null) {
-                    path.createDirectories()
-                } else {
-                    path.parent.createDirectories()
-                    path.writeBytes(contents)
+/*
+ * A pooled filesystem and the contents it holds. A filesystem is only handed out again for the same contents if a walk
+ * finds every entry as it was populated: the same set of paths, each still the same file with the same times, type,
+ * and contents. Configuration.unix supports only basic attributes, so this covers everything a run can change. Times
+ * can be restored by a run, so contents are compared in chunks through one buffer rather than read into memory.
+ * Generated filesystems are shared between execution copies, so the copies of one step take the same filesystem.
+ */
+private class PooledFileSystem(val fileSystem: FileSystem) {
+    // Attributes are copied, since a filesystem may return a live view. Directories have null contents.
+    private class Entry(val key: Any?, val modified: FileTime, val created: FileTime, val contents: ByteArray?) {
+        constructor(attributes: BasicFileAttributes, contents: ByteArray?) : this(
+            attributes.fileKey(),
+            attributes.lastModifiedTime(),
+            attributes.creationTime(),
+            contents,
+        )
+    }
+
+    var contents: Map<String, ByteArray?>? = null
+        private set
+    private var entries = mapOf<Path, Entry>()
+
+    private val root = fileSystem.getPath("/")
+    private val buffer = ByteArray(BUFFER_SIZE)
+
+    // Walks every entry, including the root unless it is excluded
+    private fun <T> walk(withRoot: Boolean = true, method: (Sequence<Path>) -> T) = Files.walk(root).use { paths ->
+        method(paths.iterator().asSequence().filter { withRoot || it != root })
+    }
+
+    private fun Path.attributes() = Files.readAttributes(this, BasicFileAttributes::class.java, NOFOLLOW_LINKS)
+
+    // Returns the filesystem to the state Jimfs creates it in: an empty root containing the working directory
+    private fun clear() {
+        contents = null
+        entries = mapOf()
+        walk(false) { paths -> paths.toList() }.asReversed().forEach { Files.delete(it) }
+        fileSystem.getPath(WORKING_DIRECTORY).createDirectories()
+    }
+
+    fun fill(files: Map<String, ByteArray?>) {
+        clear()
+        fileSystem.populate(files)
+        val populated = files.mapKeys { (filename) -> fileSystem.getPath(filename).toAbsolutePath() }
+        entries = walk { paths ->
+            paths.associateWith { path -> Entry(path.attributes(), populated[path]) }
+        }
+        contents = files
+    }
+
+    fun checkUnmodified() {
+        if (contents != null && walk { paths -> paths.onEach { check(it) }.count() } != entries.size) {
+            contents = null
+        }
+    }
+
+    private fun check(path: Path) {
+        if (contents == null) {
+            return
+        }
+        val entry = entries[path]
+        val attributes = path.attributes()
+        val unmodified = entry != null &&
+            attributes.fileKey() == entry.key &&
+            attributes.lastModifiedTime() == entry.modified &&
+            attributes.creationTime() == entry.created &&
+            if (entry.contents == null) {
+                attributes.isDirectory
+            } else {
+                attributes.isRegularFile &&
+                    attributes.size() == entry.contents.size.toLong() &&
+                    path.hasContents(entry.contents)
+            }
+        if (!unmodified) {
+            contents = null
+        }
+    }
+
+    private fun Path.hasContents(contents: ByteArray) = Files.newInputStream(this).use { input ->
+        var offset = 0
+        while (offset < contents.size) {
+            val read = input.read(buffer, 0, minOf(buffer.size, contents.size - offset))
+            if (read < 0 || !Arrays.equals(buffer, 0, read, contents, offset, offset + read)) {
+                return@use false
+            }
+            offset += read
+        }
+        input.read() < 0
+    }
+
+    companion object {
+        private const val WORKING_DIRECTORY = "/work"
+        private const val BUFFER_SIZE = 8192
+    }
+}
+
+private fun Map<String, ByteArray?>.sameContents(other: Map<String, ByteArray?>) = this === other ||
+    (
+        keys == other.keys &&
+            all { (filename, contents) ->
+                val otherContents = other[filename]
+                contents === otherContents ||
+                    (contents != null && otherContents != null && contents.contentEquals(otherContents))
+            }
+        )
+
+private object FileSystemPool {
+    private const val MAX_POOLED = 16
+
+    private val pool = ConcurrentLinkedQueue<PooledFileSystem>()
+
+    val fills = AtomicInteger()
+
+    fun take(contents: Map<String, ByteArray?>): PooledFileSystem {
+        pool.find { it.contents?.sameContents(contents) == true }?.takeIf { pool.remove(it) }?.also {
+            return it
+        }
+        val pooled = pool.poll() ?: PooledFileSystem(Jimfs.newFileSystem(Configuration.unix()))
+        fills.incrementAndGet()
+        try {
+            pooled.fill(contents)
+        } catch (e: IOException) {
+            pooled.fileSystem.close()
+            throw e
+        }
+        return pooled
+    }
+
+    fun release(pooled: PooledFileSystem) {
+        val checked = try {
+            pooled.checkUnmodified()
+            true
+        } catch (_: IOException) {
+            false
+        }
+        if (checked && pool.size < MAX_POOLED) {
+            pool.offer(pooled)
+        } else {
+            pooled.fileSystem.close()
+        }
+    }
+
+    fun clear() {
+        generateSequence { pool.poll() }.forEach { it.fileSystem.close() }
+    }
+}
+
+// Closes every pooled filesystem, so that later captures start from an empty pool
+internal fun clearFileSystemPool() = FileSystemPool.clear()
+
+// The number of times a filesystem was populated rather than reused from the pool
+internal val fileSystemPoolFills: Int
+    get() = FileSystemPool.fills.get()
+
+// The length of toByteArray's UTF-8 encoding, which replaces unpaired surrogates with a single byte
+@Suppress("MagicNumber")
+private fun String.utf8Length(): Int {
+    var length = 0
+    var i = 0
+    while (i < this.length) {
+        val c = this[i]
+        length += when {
+            c.code < 0x80 -> 1
+            c.code < 0x800 -> 2
+            c.isHighSurrogate() && i + 1 < this.length && this[i + 1].isLowSurrogate() -> 4.also { i++ }
+            c.isSurrogate() -> 1
+            else -> 3
+        }
+        i++
+    }
+    return length
+}
+
+// A growable byte array, so that captured bytes are not boxed one at a time
+private class CaptureBuffer {
+    private var bytes = ByteArray(INITIAL_SIZE)
+
+    var size = 0
+        private set
+
+    private fun ensureCapacity(needed: Int) {
+        if (needed < 0) {
+            throw OutOfMemoryError("Captured output exceeded the maximum array size")
+        }
+        if (needed > bytes.size) {
+            bytes = bytes.copyOf((bytes.size.toLong() * 2).coerceIn(needed.toLong(), MAX_SIZE.toLong()).toInt())
+        }
+    }
+
+    fun append(b: Int) {
+        ensureCapacity(size + 1)
+        bytes[size++] = b.toByte()
+    }
+
+    fun append(b: ByteArray, off: Int, len: Int) {
+        ensureCapacity(size + len)
+        System.arraycopy(b, off, bytes, size, len)
+        size += len
+    }
+
+    fun appendTo(other: CaptureBuffer, start: Int, length: Int) = other.append(bytes, start, length)
+
+    // Matches ByteArrayOutputStream.toString, which decodes using the default charset
+    override fun toString() = String(bytes, 0, size, Charset.defaultCharset())
+
+    fun decodeToString() = bytes.decodeToString(0, size)
+
+    // Arrays grown by a call that printed a lot are not kept for later calls
+    fun reset() {
+        size = 0
+        if (bytes.size > MAX_RETAINED_SIZE) {
+            bytes = ByteArray(INITIAL_SIZE)
+        }
+    }
+
+    companion object {
+        private const val INITIAL_SIZE = 256
+        private const val MAX_RETAINED_SIZE = 64 * 1024
+        private const val MAX_SIZE = Int.MAX_VALUE - 8
+    }
+}
+
+/*
+ * The buffers one capture records into. Interleaved input and output is recorded as runs of bytes from each buffer
+ * rather than copied byte by byte, with each run stored as a buffer index, start, and length.
+ */
+private class CaptureBuffers {
+    val stdin = CaptureBuffer()
+    val stdout = CaptureBuffer()
+    val stderr = CaptureBuffer()
+
+    private val buffers = arrayOf(stdin, stdout, stderr)
+    private var segments = IntArray(SEGMENT_SIZE * INITIAL_SEGMENTS)
+    private var segmentCount = 0
+
+    fun extend(buffer: CaptureBuffer, length: Int) {
+        val index = buffers.indexOf(buffer)
+        val last = (segmentCount - 1) * SEGMENT_SIZE
+        if (segmentCount > 0 && segments[last] == index) {
+            segments[last + 2] += length
+            return
+        }
+        if ((segmentCount + 1) * SEGMENT_SIZE > segments.size) {
+            segments = segments.copyOf(segments.size * 2)
+        }
+        val next = segmentCount * SEGMENT_SIZE
+        segments[next] = index
+        segments[next + 1] = buffer.size - length
+        segments[next + 2] = length
+        segmentCount++
+    }
+
+    fun interleaved() = CaptureBuffer().also { interleaved ->
+        for (segment in 0 until segmentCount) {
+            val at = segment * SEGMENT_SIZE
+            buffers[segments[at]].appendTo(interleaved, segments[at + 1], segments[at + 2])
+        }
+    }
+
+    fun reset() {
+        buffers.forEach { it.reset() }
+        segmentCount = 0
+        if (segments.size > SEGMENT_SIZE * MAX_RETAINED_SEGMENTS) {
+            segments = IntArray(SEGMENT_SIZE * INITIAL_SEGMENTS)
+        }
+    }
+
+    companion object {
+        private const val SEGMENT_SIZE = 3
+        private const val INITIAL_SEGMENTS = 16
+        private const val MAX_RETAINED_SEGMENTS = 4096
+    }
+}
+
+/*
+ * Limits on the output captured from each call and from a whole test run, so that a submission printing in a loop
+ * cannot exhaust memory. Output past either limit is dropped and its lines counted in CapturedResult.truncatedLines,
+ * and outputs that were truncated are compared by hashes of everything written. Only the submission calls whose output
+ * is compared are charged against the run limit.
+ */
+class OutputLimits internal constructor(internal val callLimit: Int, private var runRemaining: Long) {
+    // The same call limit for calls that are not charged against the run limit
+    internal val uncharged: OutputLimits = if (runRemaining == -1L) this else OutputLimits(callLimit, -1L)
+
+    @Synchronized
+    internal fun reserve(requested: Int): Int = if (runRemaining == -1L) {
+        requested
+    } else {
+        requested.toLong().coerceAtMost(runRemaining).toInt().also {
+            runRemaining -= it
+        }
+    }
+
+    companion object {
+        internal fun from(settings: Settings) = if (settings.outputLimit == -1 && settings.runOutputLimit == -1L) {
+            null
+        } else {
+            OutputLimits(settings.outputLimit, settings.runOutputLimit)
+        }
+    }
+}
+
+internal val currentOutputLimits = ThreadLocal<OutputLimits?>()
+
+internal fun <T> withOutputLimits(limits: OutputLimits?, run: () -> T): T {
+    val previous = currentOutputLimits.get()
+    currentOutputLimits.set(limits)
+    try {
+        return run()
+    } finally {
+        currentOutputLimits.set(previous)
+    }
+}
+
+class OutputDiverged : TestingStopped("Output diverged from the solution")
+
+/*
+ * Compares stdout with the solution's output as it is written. Once the output has continued for the margin past its
+ * first difference the call is stopped, since its output can no longer match.
+ */
+private class ExpectedOutput(expected: String, private val margin: Int) {
+    // Encoded the same way captured stdout is decoded
+    private val bytes = expected.toByteArray(Charset.defaultCharset())
+    private var position = 0L
+    private var divergedAt = -1L
+
+    var stopped = false
+        private set
+
+    fun compare(b: ByteArray, off: Int, len: Int) {
+        if (divergedAt == -1L) {
+            for (i in 0 until len) {
+                val at = position + i
+                if (at >= bytes.size || bytes[at.toInt()] != b[off + i]) {
+                    divergedAt = at
+                    break
                 }
             }
         }
+        position += len
+        if (divergedAt != -1L && position - divergedAt > margin) {
+            stopped = true
+        }
     }
-    filesystem.set(newFileSystem)
+}
 
-    val originalStdin = System.`in`
-    val stdinBytes = mutableListOf<Byte>()
-    val divertedStdin = object : InputStream() {
-        private val inputs = stdin.map { "$it\n".toByteArray() }
+private val currentExpectedOutput = ThreadLocal<ExpectedOutput?>()
+
+internal fun <T> expectOutput(expected: String?, margin: Int, run: () -> T): T {
+    if (expected == null || margin == -1) {
+        return run()
+    }
+    val previous = currentExpectedOutput.get()
+    currentExpectedOutput.set(ExpectedOutput(expected, margin))
+    try {
+        return run()
+    } finally {
+        currentExpectedOutput.set(previous)
+    }
+}
+
+/*
+ * State reused by the captures made on one thread: a spare set of buffers, and the PrintStreams that
+ * defaultCaptureOutputControlInput installs as System.out and System.err, which forward to the current capture. Buffers
+ * are only reused once the result recorded into them releases its output, and the PrintStreams are replaced if a write
+ * through them was interrupted by an exception, which can leave encoded bytes behind in them. As with System.out, a
+ * thread that keeps a reference to them writes to whichever capture on this thread is current.
+ */
+private class CaptureContext {
+    private var spare: CaptureBuffers? = null
+
+    @Synchronized
+    fun take(): CaptureBuffers = spare?.also { spare = null } ?: CaptureBuffers()
+
+    @Synchronized
+    fun release(buffers: CaptureBuffers) {
+        buffers.reset()
+        spare = buffers
+    }
+
+    // Output written through the PrintStreams while no capture on this thread is active is dropped
+    @Volatile
+    var current: CapturedStreams? = null
+
+    @Volatile
+    private var interrupted = false
+
+    private inner class Forwarding(private val target: (CapturedStreams) -> OutputStream) : OutputStream() {
+        override fun write(b: Int) = forward { it.write(b) }
+
+        override fun write(b: ByteArray, off: Int, len: Int) = forward { it.write(b, off, len) }
+
+        private inline fun forward(write: (OutputStream) -> Unit) {
+            val streams = current ?: return
+            @Suppress("TooGenericExceptionCaught")
+            try {
+                write(target(streams))
+            } catch (e: Throwable) {
+                interrupted = true
+                throw e
+            }
+        }
+    }
+
+    private var printStreams: Pair<PrintStream, PrintStream>? = null
+
+    fun printStreams(): Pair<PrintStream, PrintStream> {
+        if (interrupted) {
+            printStreams = null
+            interrupted = false
+        }
+        return printStreams ?: Pair(
+            PrintStream(Forwarding { it.stdout }),
+            PrintStream(Forwarding { it.stderr }),
+        ).also {
+            printStreams = it
+        }
+    }
+
+    @Synchronized
+    fun reused() = listOf(spare, printStreams?.first, printStreams?.second)
+}
+
+private val captureContext: ThreadLocal<CaptureContext> = ThreadLocal.withInitial { CaptureContext() }
+
+// The buffers and PrintStreams the current thread's captures keep for reuse, which are null until first used
+internal fun reusedCaptureState(): List<Any?> = captureContext.get().reused()
+
+/*
+ * Discards the capture state kept for the current thread, releasing any buffers held for reuse. Later captures on the
+ * thread start from fresh state.
+ */
+@Suppress("UnusedReceiverParameter")
+fun CaptureOutputControlInput.reset() = captureContext.remove()
+
+private class CapturedStreams(stdin: List<String>) {
+    private val context = captureContext.get()
+    private val buffers = context.take()
+    private val stdinBytes = buffers.stdin
+    private val stdoutBytes = buffers.stdout
+    private val stderrBytes = buffers.stderr
+    private val cancellation = currentCancellation.get()
+    private val budget = currentStepBudget.get()
+    private val limits = currentOutputLimits.get()
+    private val expected = currentExpectedOutput.get()
+    private val snapshot = currentSnapshotFileSystem.get() == true
+
+    private var callRemaining = limits?.callLimit?.takeIf { it != -1 } ?: Int.MAX_VALUE
+    private var droppedNewlines = 0
+    private var droppedPartialLine = false
+    private var stdoutHash = OUTPUT_HASH_BASIS
+    private var stderrHash = OUTPUT_HASH_BASIS
+
+    val truncatedLines: Int
+        get() = droppedNewlines + if (droppedPartialLine) 1 else 0
+
+    // Writes from threads that outlive the capture are dropped, so the buffers do not change once it returns
+    private fun record(buffer: CaptureBuffer, b: Int) = synchronized(this) {
+        if (active) {
+            buffer.append(b)
+            buffers.extend(buffer, 1)
+        }
+    }
+
+    private fun record(buffer: CaptureBuffer, b: ByteArray, off: Int, len: Int) = synchronized(this) {
+        if (active) {
+            buffer.append(b, off, len)
+            buffers.extend(buffer, len)
+        }
+    }
+
+    private fun keep(len: Int): Int = if (limits == null) {
+        len
+    } else {
+        limits.reserve(len.coerceAtMost(callRemaining)).also {
+            callRemaining -= it
+        }
+    }
+
+    private fun drop(b: ByteArray, off: Int, len: Int) {
+        for (i in off until off + len) {
+            if (b[i] == NEWLINE) {
+                droppedNewlines++
+            }
+        }
+        droppedPartialLine = b[off + len - 1] != NEWLINE
+    }
+
+    private val single = ByteArray(1)
+
+    private fun recordOutput(buffer: CaptureBuffer, b: Int) = synchronized(this) {
+        single[0] = b.toByte()
+        recordOutput(buffer, single, 0, 1)
+    }
+
+    private fun recordOutput(buffer: CaptureBuffer, b: ByteArray, off: Int, len: Int) = synchronized(this) {
+        if (!active) {
+            return
+        }
+        if (expected != null && buffer === stdoutBytes) {
+            expected.compare(b, off, len)
+        }
+        if (limits != null) {
+            if (buffer === stdoutBytes) {
+                stdoutHash = stdoutHash.hashOutput(b, off, len)
+            } else {
+                stderrHash = stderrHash.hashOutput(b, off, len)
+            }
+        }
+        val kept = keep(len)
+        if (kept > 0) {
+            record(buffer, b, off, kept)
+        }
+        if (kept < len) {
+            drop(b, off + kept, len - kept)
+        }
+    }
+
+    private inner class BufferedOutput : CapturedOutput {
+        override val stdout by lazy { stdoutBytes.toString() }
+        override val stderr by lazy { stderrBytes.toString() }
+        override val stdin by lazy { stdinBytes.decodeToString() }
+        override val interleavedInputOutput by lazy { buffers.interleaved().decodeToString() }
+
+        override fun release() = context.release(buffers)
+    }
+
+    @Volatile
+    var active = true
+
+    // All input is encoded into one buffer, with each line readable only until output moves input to the next line
+    inner class DivertedStdin(stdin: List<String>) : InputStream() {
+        private val bytes = buildString {
+            stdin.forEach { append(it).append('\n') }
+        }.toByteArray()
+        private val lineEnds = IntArray(stdin.size).also { ends ->
+            var end = 0
+            stdin.forEachIndexed { i, line ->
+                end += line.utf8Length() + 1
+                ends[i] = end
+            }
+        }
         private var index = 0
         private var usedIndex = false
-        private var stream = ByteArrayInputStream(inputs.getOrNull(index) ?: "".toByteArray())
+        private var position = 0
+        private var end = lineEnds.getOrElse(0) { 0 }
 
         fun bump() {
             if (usedIndex) {
                 index++
-                stream = ByteArrayInputStream(inputs.getOrNull(index) ?: "".toByteArray())
+                position = end
+                end = lineEnds.getOrElse(index) { end }
                 usedIndex = false
             }
         }
 
         override fun read(): Int {
+            cancellation?.check()
+            budget?.check()
             usedIndex = true
-            val b = stream.read()
-            if (b != -1) {
-                ioBytes += b.toByte()
-                stdinBytes += b.toByte()
+            if (position == end) {
+                return -1
             }
+            val b = bytes[position++].toUByte().toInt()
+            record(stdinBytes, b)
             return b
         }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            Objects.checkFromIndexSize(off, len, b.size)
+            if (len == 0) {
+                return 0
+            }
+            cancellation?.check()
+            budget?.check()
+            usedIndex = true
+            if (position == end) {
+                return -1
+            }
+            val count = len.coerceAtMost(end - position)
+            System.arraycopy(bytes, position, b, off, count)
+            record(stdinBytes, bytes, position, count)
+            position += count
+            return count
+        }
+
+        override fun available() = end - position
     }
-    System.setIn(divertedStdin)
 
-    val originalStdout = System.out
-    val divertedStdout = object : OutputStream() {
-        val stream = ByteArrayOutputStream()
+    private fun checkExpected() {
+        if (expected?.stopped == true) {
+            throw OutputDiverged()
+        }
+    }
+
+    inner class DivertedOutput(private val buffer: CaptureBuffer, private val bumpStdin: Boolean) : OutputStream() {
         override fun write(b: Int) {
-            stream.write(b)
-            ioBytes += b.toByte()
-            divertedStdin.bump()
+            cancellation?.check()
+            budget?.check()
+            checkExpected()
+            recordOutput(buffer, b)
+            if (bumpStdin) {
+                stdin.bump()
+            }
         }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            Objects.checkFromIndexSize(off, len, b.size)
+            if (len == 0) {
+                return
+            }
+            cancellation?.check()
+            budget?.check()
+            checkExpected()
+            recordOutput(buffer, b, off, len)
+            // Bumping once is equivalent to bumping after each byte, since only the first bump can advance
+            if (bumpStdin) {
+                stdin.bump()
+            }
+        }
+    }
+
+    val stdin = DivertedStdin(stdin)
+    val stdout = DivertedOutput(stdoutBytes, true)
+    val stderr = DivertedOutput(stderrBytes, false)
+
+    fun run(fileSystem: Map<String, ByteArray?>, run: () -> Any?): CapturedResult {
+        capturedFileSystem.open(fileSystem)
+        var manifest: FileSystemManifest? = null
+
+        @Suppress("TooGenericExceptionCaught")
+        val result: Pair<Any?, Throwable?> = try {
+            Pair(run(), null)
+        } catch (e: OutOfMemoryError) {
+            throw e
+        } catch (@Suppress("DEPRECATION") e: ThreadDeath) {
+            throw e
+        } catch (e: TestingCancelled) {
+            throw e
+        } catch (e: Throwable) {
+            Pair(null, e)
+        } finally {
+            synchronized(this) {
+                active = false
+            }
+            try {
+                if (snapshot) {
+                    manifest = capturedFileSystem.manifest()
+                }
+            } finally {
+                capturedFileSystem.close()
+            }
+        }
+        // Results from a run that was cancelled partway through are not reliable
+        cancellation?.check()
+        // Whatever a stopped call returned or threw was caused by stopping it
+        val stopped = expected?.stopped == true
+
+        return CapturedResult(
+            result.first.takeUnless { stopped },
+            result.second.takeUnless { stopped },
+            BufferedOutput(),
+            truncatedLines,
+            null,
+            stopped,
+            manifest,
+            if (limits != null) stdoutHash else 0,
+            if (limits != null) stderrHash else 0,
+        )
     }
-    System.setOut(PrintStream(divertedStdout))
+}
 
+private fun FileSystem.populate(files: Map<String, ByteArray?>) {
+    files.forEach { (filename, contents) ->
+        getPath(filename).also { path ->
+            if (contents == null) {
+                path.createDirectories()
+            } else {
+                path.parent.createDirectories()
+                path.writeBytes(contents)
+            }
+        }
+    }
+}
+
+fun defaultCaptureOutputControlInput(
+    stdin: List<String> = listOf(),
+    fileSystem: Map<String, ByteArray?> = mapOf(),
+    run: () -> Any?,
+): CapturedResult = outputLock.withLock {
+    val streams = CapturedStreams(stdin)
+    if (ThreadRoutedStreams.installed) {
+        val previous = ThreadRoutedStreams.bind(streams)
+        return@withLock try {
+            streams.run(fileSystem, run)
+        } finally {
+            ThreadRoutedStreams.bind(previous)
+        }
+    }
+
+    val originalStdin = System.`in`
+    val originalStdout = System.out
     val originalStderr = System.err
-    val divertedStderr = object : OutputStream() {
-        val stream = ByteArrayOutputStream()
-        override fun write(b: Int) {
-            stream.write(b)
-            ioBytes += b.toByte()
-        }
-    }
-    System.setErr(PrintStream(divertedStderr))
-
-    @Suppress("TooGenericExceptionCaught")
-    val result: Pair<Any?, Throwable?> = try {
-        Pair(run(), null)
-    } catch (e: OutOfMemoryError) {
-        throw e
-    } catch (@Suppress("DEPRECATION") e: ThreadDeath) {
-        throw e
-    } catch (e: Throwable) {
-        Pair(null, e)
-    }
-
-    filesystem.get().close()
-    filesystem.remove()
-
-    System.setOut(originalStdout)
-    System.setErr(originalStderr)
-    System.setIn(originalStdin)
-
-    return CapturedResult(
-        result.first,
-        result.second,
-        divertedStdout.stream.toString(),
-        divertedStderr.stream.toString(),
-        stdinBytes.toByteArray().decodeToString(),
-        ioBytes.toByteArray().decodeToString(),
-        0,
-    )
+
+    val context = captureContext.get()
+    val (stdout, stderr) = context.printStreams()
+    val previous = context.current
+    context.current = streams
+
+    System.setIn(streams.stdin)
+    System.setOut(stdout)
+    System.setErr(stderr)
+
+    try {
+        streams.run(fileSystem, run)
+    } finally {
+        context.current = previous
+        System.setOut(originalStdout)
+        System.setErr(originalStderr)
+        System.setIn(originalStdin)
+    }
+}
+
+/*
+ * A PrintStream for each thread that writes to the given target. As in CaptureContext, a thread's PrintStream is
+ * replaced once a write through it is interrupted by an exception or it is closed, since encoded bytes left behind in
+ * it would otherwise be written to whichever capture the thread uses next.
+ */
+private class ThreadPrintStreams(private val target: () -> OutputStream) {
+    private inner class Local {
+        @Volatile
+        var discarded = false
+
+        val printStream = PrintStream(
+            object : OutputStream() {
+                override fun write(b: Int) = forward { it.write(b) }
+                override fun write(b: ByteArray, off: Int, len: Int) = forward { it.write(b, off, len) }
+                override fun flush() = forward { it.flush() }
+            },
+            true,
+        )
+
+        private inline fun forward(write: (OutputStream) -> Unit) {
+            @Suppress("TooGenericExceptionCaught")
+            try {
+                write(target())
+            } catch (e: Throwable) {
+                discarded = true
+                throw e
+            }
+        }
+    }
+
+    private val local = ThreadLocal<Local>()
+
+    private fun current() = local.get()?.takeUnless { it.discarded } ?: Local().also { local.set(it) }
+
+    fun get(): PrintStream = current().printStream
+
+    fun close() = current().also { it.discarded = true }.printStream.close()
+}
+
+// Installed as System.out and System.err, delegating every call to the current thread's PrintStream
+@Suppress("TooManyFunctions", "SpreadOperator")
+private class RoutedPrintStream(
+    private val streams: ThreadPrintStreams,
+) : PrintStream(OutputStream.nullOutputStream()) {
+    override fun flush() = streams.get().flush()
+    override fun close() = streams.close()
+    override fun checkError() = streams.get().checkError()
+    override fun write(b: Int) = streams.get().write(b)
+    override fun write(buf: ByteArray, off: Int, len: Int) = streams.get().write(buf, off, len)
+    override fun write(buf: ByteArray) = streams.get().write(buf)
+    override fun writeBytes(buf: ByteArray) = streams.get().writeBytes(buf)
+    override fun print(b: Boolean) = streams.get().print(b)
+    override fun print(c: Char) = streams.get().print(c)
+    override fun print(i: Int) = streams.get().print(i)
+    override fun print(l: Long) = streams.get().print(l)
+    override fun print(f: Float) = streams.get().print(f)
+    override fun print(d: Double) = streams.get().print(d)
+    override fun print(s: CharArray) = streams.get().print(s)
+    override fun print(s: String?) = streams.get().print(s)
+    override fun print(obj: Any?) = streams.get().print(obj)
+    override fun println() = streams.get().println()
+    override fun println(x: Boolean) = streams.get().println(x)
+    override fun println(x: Char) = streams.get().println(x)
+    override fun println(x: Int) = streams.get().println(x)
+    override fun println(x: Long) = streams.get().println(x)
+    override fun println(x: Float) = streams.get().println(x)
+    override fun println(x: Double) = streams.get().println(x)
+    override fun println(x: CharArray) = streams.get().println(x)
+    override fun println(x: String?) = streams.get().println(x)
+    override fun println(x: Any?) = streams.get().println(x)
+    override fun printf(format: String, vararg args: Any?): PrintStream = apply { streams.get().printf(format, *args) }
+    override fun printf(l: Locale?, format: String, vararg args: Any?): PrintStream = apply {
+        streams.get().printf(l, format, *args)
+    }
+    override fun format(format: String, vararg args: Any?): PrintStream = apply { streams.get().format(format, *args) }
+    override fun format(l: Locale?, format: String, vararg args: Any?): PrintStream = apply {
+        streams.get().format(l, format, *args)
+    }
+    override fun append(csq: CharSequence?): PrintStream = apply { streams.get().append(csq) }
+    override fun append(csq: CharSequence?, start: Int, end: Int): PrintStream = apply {
+        streams.get().append(csq, start, end)
+    }
+    override fun append(c: Char): PrintStream = apply { streams.get().append(c) }
+}
+
+/*
+ * Routes System.in, System.out, and System.err to the streams bound to the current thread, falling back to the
+ * original JVM streams when no capture is active. Installed once and never removed, which allows captures on
+ * different threads to proceed without holding the global output lock.
+ */
+private object ThreadRoutedStreams {
+    private val bound = InheritableThreadLocal<CapturedStreams?>()
+
+    @Volatile
+    var installed = false
+        private set
+
+    private lateinit var originalStdin: InputStream
+    private lateinit var originalStdout: PrintStream
+    private lateinit var originalStderr: PrintStream
+
+    private fun current() = bound.get()?.takeIf { it.active }
+
+    private fun stdout(): OutputStream = current()?.stdout ?: originalStdout
+    private fun stderr(): OutputStream = current()?.stderr ?: originalStderr
+    private fun stdin(): InputStream = current()?.stdin ?: originalStdin
+
+    fun install() {
+        if (installed) {
+            return
+        }
+        outputLock.withLock {
+            if (installed) {
+                return
+            }
+            originalStdin = System.`in`
+            originalStdout = System.out
+            originalStderr = System.err
+
+            System.setIn(object : InputStream() {
+                override fun read() = stdin().read()
+                override fun read(b: ByteArray, off: Int, len: Int) = stdin().read(b, off, len)
+                override fun available() = stdin().available()
+            })
+            System.setOut(RoutedPrintStream(ThreadPrintStreams(::stdout)))
+            System.setErr(RoutedPrintStream(ThreadPrintStreams(::stderr)))
+            installed = true
+        }
+    }
+
+    fun bind(streams: CapturedStreams?): CapturedStreams? = bound.get().also {
+        bound.set(streams)
+    }
+}
+
+/*
+ * Captures output and controls input without serializing on a global lock, so that independent Submission.test runs
+ * on different threads can proceed in parallel. Output is attributed to the calling thread and threads it starts
+ * while the capture is active.
+ */
+fun concurrentCaptureOutputControlInput(
+    stdin: List<String> = listOf(),
+    fileSystem: Map<String, ByteArray?> = mapOf(),
+    run: () -> Any?,
+): CapturedResult {
+    ThreadRoutedStreams.install()
+
+    val streams = CapturedStreams(stdin)
+    val previous = ThreadRoutedStreams.bind(streams)
+    return try {
+        streams.run(fileSystem, run)
+    } finally {
+        ThreadRoutedStreams.bind(previous)
+    }
 }
@@ -0,0 +1,200 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+/*
+ * A line diff of solution and submission output used to explain failures. Lines are compared in place as ranges of
+ * the captured output. Only a window of lines following the first difference is diffed, and the diff gives up after a
+ * fixed number of edits, so explaining a failure takes bounded memory and produces bounded text however much was
+ * printed.
+ */
+internal class OutputDiff(private val solution: String, private val submission: String) {
+    // Lines include their newline, so that output differing only in a final newline still has a differing line
+    private class Lines(val text: String, from: Int) {
+        val starts = IntArray(WINDOW_LINES)
+        val ends = IntArray(WINDOW_LINES)
+        var size = 0
+            private set
+
+        init {
+            var start = from
+            while (start < text.length && size < WINDOW_LINES) {
+                starts[size] = start
+                ends[size] = text.lineEnd(start)
+                start = ends[size]
+                size++
+            }
+        }
+
+        fun line(index: Int) = text.line(starts[index], ends[index])
+    }
+
+    private class Edit(val marker: Char, val lines: Lines, val index: Int)
+
+    private val firstLine: Int
+    private val before: List<String>
+    private val solutionLines: Lines
+    private val submissionLines: Lines
+    private val edits: List<Edit>?
+
+    init {
+        var mismatch = 0
+        while (mismatch < solution.length && mismatch < submission.length &&
+            solution[mismatch] == submission[mismatch]
+        ) {
+            mismatch++
+        }
+        val start = solution.lastIndexOf('\n', mismatch - 1) + 1
+        firstLine = solution.count(0, start) + 1
+
+        var contextStart = start
+        repeat(CONTEXT_LINES) {
+            if (contextStart > 0) {
+                contextStart = solution.lastIndexOf('\n', contextStart - 2) + 1
+            }
+        }
+        before = mutableListOf<String>().also { lines ->
+            while (contextStart < start) {
+                val end = solution.lineEnd(contextStart)
+                lines += solution.line(contextStart, end)
+                contextStart = end
+            }
+        }
+
+        solutionLines = Lines(solution, start)
+        submissionLines = Lines(submission, start)
+        edits = diff()
+    }
+
+    private fun equal(x: Int, y: Int): Boolean {
+        val length = solutionLines.ends[x] - solutionLines.starts[x]
+        return length == submissionLines.ends[y] - submissionLines.starts[y] &&
+            solution.regionMatches(solutionLines.starts[x], submission, submissionLines.starts[y], length)
+    }
+
+    // Myers' greedy algorithm, keeping the furthest reaching paths from each round to recover the edits
+    @Suppress("ComplexMethod", "NestedBlockDepth")
+    private fun diff(): List<Edit>? {
+        val n = solutionLines.size
+        val m = submissionLines.size
+        val offset = MAX_EDITS + 1
+        val v = IntArray(2 * MAX_EDITS + 3)
+        val trace = mutableListOf<IntArray>()
+        for (d in 0..MAX_EDITS) {
+            trace += v.copyOf()
+            for (k in -d..d step 2) {
+                var x = if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    v[offset + k + 1]
+                } else {
+                    v[offset + k - 1] + 1
+                }
+                var y = x - k
+                while (x < n && y < m && equal(x, y)) {
+                    x++
+                    y++
+                }
+                v[offset + k] = x
+                if (x >= n && y >= m) {
+                    return backtrack(trace, n, m)
+                }
+            }
+        }
+        return null
+    }
+
+    private fun backtrack(trace: List<IntArray>, n: Int, m: Int): List<Edit> {
+        val offset = MAX_EDITS + 1
+        val edits = mutableListOf<Edit>()
+        var x = n
+        var y = m
+        for (d in trace.indices.reversed()) {
+            val v = trace[d]
+            val k = x - y
+            val previousK = if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) k + 1 else k - 1
+            val previousX = v[offset + previousK]
+            val previousY = previousX - previousK
+            while (x > previousX && y > previousY) {
+                x--
+                y--
+                edits += Edit(' ', solutionLines, x)
+            }
+            if (d > 0) {
+                edits += if (x == previousX) {
+                    Edit('+', submissionLines, y - 1)
+                } else {
+                    Edit('-', solutionLines, x - 1)
+                }
+            }
+            x = previousX
+            y = previousY
+        }
+        return edits.asReversed()
+    }
+
+    private fun hunk(): List<String> {
+        if (edits == null) {
+            return (0 until solutionLines.size.coerceAtMost(SHOWN_LINES / 2)).map { "- ${solutionLines.line(it)}" } +
+                (0 until submissionLines.size.coerceAtMost(SHOWN_LINES / 2)).map { "+ ${submissionLines.line(it)}" }
+        }
+        val shown = mutableListOf<String>()
+        var trailing = 0
+        for (edit in edits.dropWhile { it.marker == ' ' }) {
+            if (shown.size == SHOWN_LINES || trailing == CONTEXT_LINES) {
+                break
+            }
+            trailing = if (edit.marker == ' ') trailing + 1 else 0
+            shown += "${edit.marker} ${edit.lines.line(edit.index)}"
+        }
+        return shown
+    }
+
+    fun explain(what: String): String {
+        val summary = if (edits == null) {
+            "More than $MAX_EDITS lines differ in the first $WINDOW_LINES lines compared"
+        } else {
+            "${edits.count { it.marker == '-' }} lines removed and ${edits.count { it.marker == '+' }} lines added " +
+                "in the first $WINDOW_LINES lines compared"
+        }
+        return (
+            listOf("Solution and submission $what first differ at line $firstLine:") +
+                before.map { "  $it" } +
+                hunk() +
+                listOf(
+                    summary,
+                    "Solution printed ${solution.lineCount()} lines (length ${solution.length}), " +
+                        "submission printed ${submission.lineCount()} lines (length ${submission.length})",
+                )
+            ).joinToString("\n")
+    }
+
+    companion object {
+        const val FULL_OUTPUT_LENGTH = 4096
+        private const val CONTEXT_LINES = 3
+        private const val SHOWN_LINES = 32
+        private const val WINDOW_LINES = 1024
+        private const val MAX_EDITS = 64
+        private const val MAX_LINE_LENGTH = 120
+
+        private fun String.lineEnd(start: Int) = indexOf('\n', start).let { if (it == -1) length else it + 1 }
+
+        private fun String.line(start: Int, end: Int): String {
+            val newline = end > start && this[end - 1] == '\n'
+            val length = end - start - if (newline) 1 else 0
+            return if (length > MAX_LINE_LENGTH) {
+                substring(start, start + MAX_LINE_LENGTH) + "..."
+            } else {
+                substring(start, start + length)
+            } + if (newline) "" else " (no newline)"
+        }
+
+        private fun String.count(start: Int, end: Int): Int {
+            var count = 0
+            for (i in start until end) {
+                if (this[i] == '\n') {
+                    count++
+                }
+            }
+            return count
+        }
+
+        private fun String.lineCount() = count(0, length) + if (isEmpty() || endsWith('\n')) 0 else 1
+    }
+}
@@ -2,9 +2,12 @@
 
 package edu.illinois.cs.cs125.jenisol.core
 
-import com.rits.cloning.Cloner
+import edu.illinois.cs.cs125.jenisol.core.generators.CopyEngine
+import edu.illinois.cs.cs125.jenisol.core.generators.Fingerprint
 import edu.illinois.cs.cs125.jenisol.core.generators.GeneratorFactory
+import edu.illinois.cs.cs125.jenisol.core.generators.GeneratorRandom
 import edu.illinois.cs.cs125.jenisol.core.generators.Parameters
+import edu.illinois.cs.cs125.jenisol.core.generators.SharedParameters
 import edu.illinois.cs.cs125.jenisol.core.generators.boxType
 import edu.illinois.cs.cs125.jenisol.core.generators.fileSystemDummyExecutable
 import edu.illinois.cs.cs125.jenisol.core.generators.getArrayDimension
@@ -101,6 +104,11 @@ class Solution(val solution: Class<*>) {
         }
     }
 
+    // Receivers can only reach a call as parameters of types that fingerprints do not cover, or through @Both
+    val fingerprintable = bothExecutables.isEmpty() && (methodsToTest + receiverGenerators).all { executable ->
+        executable.genericParameterTypes.all { Fingerprint.covers(it) }
+    }
+
     fun defaultTestingWeight(executable: Executable): Double {
         require(executable in methodsToTest)
         return if (executable.parameterCount == 0) {
@@ -201,7 +209,7 @@ class Solution(val solution: Class<*>) {
         1
     } else {
         receiverGenerators.sumOf { generator ->
-            generatorFactory.get(Random, Cloner.shared())[generator]!!.fixed.filter {
+            generatorFactory.get(Random, CopyEngine.shared())[generator]!!.fixed.filter {
                 it.type == Parameters.Type.SIMPLE || it.type == Parameters.Type.FIXED_FIELD
             }.size
         } * 2
@@ -211,7 +219,7 @@ class Solution(val solution: Class<*>) {
             if (generator.receiverParameter()) {
                 defaultReceiverCount
             } else {
-                generatorFactory.get(Random, Cloner.shared())[generator]!!.fixed.size.coerceAtLeast(1) +
+                generatorFactory.get(Random, CopyEngine.shared())[generator]!!.fixed.size.coerceAtLeast(1) +
                     if (receiverGenerators.isNotEmpty() && generator.objectParameter()) {
                         defaultReceiverCount
                     } else {
@@ -350,6 +358,40 @@ class Solution(val solution: Class<*>) {
 
     fun submission(submission: Class<*>) = Submission(this, submission)
 
+    val supportsTranscripts = skipReceiver || fauxStatic
+
+    fun recordTranscript(passedSettings: Settings): SolutionTranscript {
+        check(supportsTranscripts) { "Transcripts are only supported for solutions without receiver state" }
+        val settings = setCounts(Settings.DEFAULTS merge passedSettings)
+        require(settings.seed != -1) { "Recording a transcript requires a fixed seed" }
+        return SolutionTranscript(this, settings.transcriptKey()).also { transcript ->
+            submission(solution).test(passedSettings, transcript = transcript)
+            transcript.recorded = true
+        }
+    }
+
+    /*
+     * Tests a batch of submissions with one seed, sharing generated parameters between them. Submissions that follow
+     * the same testing sequence receive copies of parameters generated for earlier submissions rather than generating
+     * them again. All submissions are checked for design errors before any are tested.
+     */
+    fun testMany(
+        submissions: List<Class<*>>,
+        passedSettings: Settings = Settings(),
+        captureOutputControlInput: CaptureOutputControlInput = ::defaultCaptureOutputControlInput,
+    ): List<TestResults> {
+        val settings = if (passedSettings.seed == -1) {
+            passedSettings.copy(seed = Random.nextInt(0, Int.MAX_VALUE))
+        } else {
+            passedSettings
+        }
+        val sharedParameters =
+            SharedParameters(this, settings.seed, (Settings.DEFAULTS merge settings).generatorVersion)
+        return submissions.map { submission(it) }.map { submission ->
+            submission.test(settings, captureOutputControlInput, sharedParameters = sharedParameters)
+        }
+    }
+
     fun checkFields(otherSolution: Class<*>) {
         check(solution != otherSolution) {
             "Should not check fields on identical classes"
@@ -736,6 +778,16 @@ data class Settings(
     val maxTestCount: Int = -1,
     val testing: Boolean? = null,
     val recordTrace: Boolean? = null,
+    val stepCpuBudget: Long = -1,
+    val stepAllocationBudget: Long = -1,
+    val streaming: Boolean? = null,
+    val pipelineGeneration: Boolean? = null,
+    val outputLimit: Int = -1,
+    val runOutputLimit: Long = -1,
+    val outputDivergenceMargin: Int = -1,
+    val captureFileSystem: Boolean? = null,
+    val generatorVersion: Int = -1,
+    val fingerprintParameters: Boolean? = null,
 ) {
     companion object {
         const val DEFAULT_RECEIVER_RETRIES = 4
@@ -743,6 +795,11 @@ data class Settings(
             runAll = false,
             testing = false,
             recordTrace = false,
+            streaming = false,
+            pipelineGeneration = false,
+            captureFileSystem = false,
+            generatorVersion = GeneratorRandom.FIRST_VERSION,
+            fingerprintParameters = false,
         )
     }
 
@@ -782,5 +839,39 @@ data class Settings(
         },
         other.testing ?: testing,
         other.recordTrace ?: recordTrace,
+        if (other.stepCpuBudget != -1L) {
+            other.stepCpuBudget
+        } else {
+            stepCpuBudget
+        },
+        if (other.stepAllocationBudget != -1L) {
+            other.stepAllocationBudget
+        } else {
+            stepAllocationBudget
+        },
+        other.streaming ?: streaming,
+        other.pipelineGeneration ?: pipelineGeneration,
+        if (other.outputLimit != -1) {
+            other.outputLimit
+        } else {
+            outputLimit
+        },
+        if (other.runOutputLimit != -1L) {
+            other.runOutputLimit
+        } else {
+            runOutputLimit
+        },
+        if (other.outputDivergenceMargin != -1) {
+            other.outputDivergenceMargin
+        } else {
+            outputDivergenceMargin
+        },
+        other.captureFileSystem ?: captureFileSystem,
+        if (other.generatorVersion != -1) {
+            other.generatorVersion
+        } else {
+            generatorVersion
+        },
+        other.fingerprintParameters ?: fingerprintParameters,
     )
 }
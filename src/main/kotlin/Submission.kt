@@ -4,9 +4,13 @@ package edu.illinois.cs.cs125.jenisol.core
 
 import com.rits.cloning.Cloner
 import edu.illinois.cs.cs125.jenisol.core.generators.Complexity
+import edu.illinois.cs.cs125.jenisol.core.generators.CopyEngine
+import edu.illinois.cs.cs125.jenisol.core.generators.GenerationPipeline
+import edu.illinois.cs.cs125.jenisol.core.generators.GeneratorRandom
 import edu.illinois.cs.cs125.jenisol.core.generators.Generators
 import edu.illinois.cs.cs125.jenisol.core.generators.ObjectGenerator
 import edu.illinois.cs.cs125.jenisol.core.generators.ReceiverGenerator
+import edu.illinois.cs.cs125.jenisol.core.generators.SharedParameters
 import edu.illinois.cs.cs125.jenisol.core.generators.TypeGeneratorGenerator
 import edu.illinois.cs.cs125.jenisol.core.generators.Value
 import edu.illinois.cs.cs125.jenisol.core.generators.getArrayDimension
@@ -17,8 +21,18 @@ import java.lang.reflect.Field
 import java.lang.reflect.InvocationTargetException
 import java.lang.reflect.Method
 import java.lang.reflect.Type
+import java.time.Duration
+import java.time.Instant
 import java.util.TreeMap
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import kotlin.random.Random
+import kotlin.reflect.full.companionObjectInstance
 import kotlin.reflect.full.memberFunctions
 
 @Suppress("LargeClass")
@@ -292,6 +306,16 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         }
     }
 
+    internal val companionInstance: Any? = if (submission.hasKotlinCompanion()) {
+        submission.kotlin.companionObjectInstance
+    } else {
+        null
+    }
+
+    val executionPlan = createExecutionPlan()
+
+    internal val instanceValidator = solution.instanceValidator?.let { Invoker(it) }
+
     private val comparators = Comparators(
         mutableMapOf(solution.solution to solution.receiverCompare, submission to solution.receiverCompare),
     )
@@ -303,10 +327,10 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         }
 
     fun verify(executable: Executable, result: TestResult<*, *>) {
-        solution.verifiers[executable]?.also { customVerifier ->
+        executionPlan[executable]?.verifier?.also { customVerifier ->
             @Suppress("TooGenericExceptionCaught")
             try {
-                unwrap { customVerifier.invoke(null, result) }
+                customVerifier(null, arrayOf(result))
             } catch (@Suppress("DEPRECATION") e: ThreadDeath) {
                 throw e
             } catch (e: Throwable) {
@@ -318,20 +342,38 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         }
     }
 
+    // The output defaultVerify requires to match exactly, if any, and if it can be compared byte by byte
+    internal fun expectedStdout(executable: Executable, solution: Result<*, *>): String? {
+        val plan = executionPlan[executable]
+        return solution.stdout.takeIf {
+            plan?.verifier == null &&
+                (plan?.strictOutput == true || it.isNotBlank()) &&
+                solution.truncatedLines == 0 &&
+                !it.contains('\uFFFD')
+        }
+    }
+
     @Suppress("ComplexMethod", "LongMethod")
     private fun defaultVerify(result: TestResult<*, *>) {
         val solution = result.solution
         val submission = result.submission
 
-        val strictOutput = result.solutionExecutable.annotations.find { it is Configure }?.let {
-            (it as Configure).strictOutput
-        } ?: false
+        val strictOutput = executionPlan[result.solutionExecutable]?.strictOutput ?: false
 
         if (!compare(solution.threw, submission.threw, result.solutionClass, result.submissionClass)) {
             result.differs.add(TestResult.Differs.THREW)
         }
 
-        if ((strictOutput || solution.stdout.isNotBlank()) && solution.stdout != submission.stdout) {
+        // Truncated outputs are compared by hashes of everything written, since their kept prefixes can differ
+        val truncated = solution.truncatedLines > 0 || submission.truncatedLines > 0
+
+        if ((strictOutput || solution.stdout.isNotBlank()) &&
+            if (truncated) {
+                solution.stdoutHash != submission.stdoutHash
+            } else {
+                solution.stdout != submission.stdout
+            }
+        ) {
             result.differs.add(TestResult.Differs.STDOUT)
             if (solution.stdout == submission.stdout + "\n") {
                 result.message = if (result.submissionIsKotlin) {
@@ -349,7 +391,13 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             }
         }
 
-        if ((strictOutput || solution.stderr.isNotBlank()) && solution.stderr != submission.stderr) {
+        if ((strictOutput || solution.stderr.isNotBlank()) &&
+            if (truncated) {
+                solution.stderrHash != submission.stderrHash
+            } else {
+                solution.stderr != submission.stderr
+            }
+        ) {
             result.differs.add(TestResult.Differs.STDERR)
             if (solution.stderr == submission.stderr + "\n") {
                 result.message =
@@ -363,11 +411,18 @@ class Submission(val solution: Solution, val submission: Class<*>) {
 
         @Suppress("ComplexCondition")
         if ((strictOutput || solution.stdout.isNotBlank() || solution.stderr.isNotBlank()) &&
+            !truncated &&
             solution.interleavedOutput != submission.interleavedOutput
         ) {
             result.differs.add(TestResult.Differs.INTERLEAVED_OUTPUT)
         }
 
+        if (solution.fileSystem != null && submission.fileSystem != null &&
+            solution.fileSystem != submission.fileSystem
+        ) {
+            result.differs.add(TestResult.Differs.FILESYSTEM)
+        }
+
         if (result.existingReceiverMismatch) {
             result.differs.add(TestResult.Differs.RETURN)
         }
@@ -476,16 +531,22 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         fun more() = methods.size > finished.size
     }
 
-    class RecordingRandom(seed: Long, private val follow: List<Int>? = null, private val record: Boolean = false) :
-        Random() {
+    class RecordingRandom(
+        seed: Long,
+        private val follow: List<Int>? = null,
+        private val record: Boolean = false,
+        generatorVersion: Int = GeneratorRandom.FIRST_VERSION,
+    ) : GeneratorRandom(generatorVersion) {
         private val random = Random(seed)
         private val trace = mutableListOf<Int>()
 
         var currentIndex = 0
         var lastRandom = 0
+        private var draws: MutableList<Int>? = null
 
         @Suppress("ThrowingExceptionsWithoutMessageOrCause")
         override fun nextBits(bitCount: Int): Int = random.nextBits(bitCount).also { newValue ->
+            draws?.add(bitCount)
             if (record) {
                 trace += newValue
             }
@@ -502,6 +563,16 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         }
 
         fun finish(): List<Int> = trace.toList()
+
+        internal fun <T> recordDraws(draws: MutableList<Int>, block: () -> T): T {
+            val previous = this.draws
+            this.draws = draws
+            try {
+                return block()
+            } finally {
+                this.draws = previous
+            }
+        }
     }
 
     fun findReceiver(runners: List<TestRunner>, solutionReceiver: Any) = let {
@@ -517,6 +588,10 @@ class Submission(val solution: Solution, val submission: Class<*>) {
         captureOutputControlInput: CaptureOutputControlInput = ::defaultCaptureOutputControlInput,
         followTrace: List<Int>? = null,
         testingEventListener: TestingEventListener = {},
+        transcript: SolutionTranscript? = null,
+        cloner: Cloner = CopyEngine.shared(),
+        sharedParameters: SharedParameters? = null,
+        cancellation: CancellationToken? = null,
     ): TestResults {
         if (solution.solution.isDesignOnly() || solution.solution.isAbstract()) {
             throw DesignOnlyTestingError(solution.solution)
@@ -528,13 +603,36 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             "Running all tests combined with test shrinking produces inconsistent results"
         }
 
-        val random = if (settings.seed == -1) {
-            RecordingRandom(Random.nextLong(), follow = followTrace, record = settings.recordTrace!!)
+        val transcriptSession = transcript?.let {
+            require(it.solution == solution) { "Transcript was recorded for a different solution" }
+            require(it.settings == settings.transcriptKey()) { "Transcript was recorded with different settings" }
+            TranscriptSession(it, !it.recorded, testingEventListener, cloner)
+        }
+        sharedParameters?.also {
+            require(it.solution == solution) { "Shared parameters were generated for a different solution" }
+            require(it.seed == settings.seed) { "Shared parameters were generated with a different seed" }
+            require(it.generatorVersion == settings.generatorVersion) {
+                "Shared parameters were generated with a different generator version"
+            }
+        }
+
+        val seed = if (settings.seed == -1) {
+            Random.nextLong()
+        } else {
+            settings.seed.toLong()
+        }
+        val random = RecordingRandom(seed, followTrace, settings.recordTrace!!, settings.generatorVersion)
+        // Pipelined generation draws from streams split from the seed, so the trace covers only the main stream
+        val pipeline = if (settings.pipelineGeneration!!) {
+            GenerationPipeline(seed, settings.generatorVersion)
         } else {
-            RecordingRandom(settings.seed.toLong(), follow = followTrace, record = settings.recordTrace!!)
+            null
         }
 
         val runners: MutableList<TestRunner> = mutableListOf()
+        val statistics = RunStatistics()
+        val deferredRuns = DeferredRuns(statistics)
+        val stepBudget = StepBudget.from(settings)
         var stepCount = 0
 
         val receiverGenerators = sequence {
@@ -543,10 +641,8 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             }
         }
 
-        val cloner = Cloner.shared()
-
         val (receiverGenerator, generatorOverrides) = if (!solution.skipReceiver) {
-            val receiverGenerator = ReceiverGenerator(random, mutableListOf(), this@Submission)
+            val receiverGenerator = ReceiverGenerator(random, mutableListOf(), this@Submission, cloner)
             val overrideMap = mutableMapOf(
                 (solution.solution as Type)
                     to ({ _: Random, _: Cloner -> receiverGenerator } as TypeGeneratorGenerator),
@@ -565,7 +661,13 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             Pair<ReceiverGenerator?, Map<Type, TypeGeneratorGenerator>>(null, mapOf())
         }
 
-        val generators = solution.generatorFactory.get(random, cloner, generatorOverrides)
+        val generators = solution.generatorFactory.get(
+            random,
+            cloner,
+            generatorOverrides,
+            shared = sharedParameters,
+            pipeline = pipeline,
+        )
 
         fun List<TestRunner>.createdCount() =
             count { it.created && (solution.skipReceiver || it.receivers?.solution != null) }
@@ -579,7 +681,13 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             threw: Throwable? = null,
             timeout: Boolean = false,
         ) = TestResults(
-            map { it.testResults as List<TestResult<Any, ParameterGroup>> }.flatten().sortedBy { it.stepCount },
+            if (settings.streaming!!) {
+                listOfNotNull(
+                    flatMap { it.testResults }.minWithOrNull(compareBy({ it.complexity }, { it.stepCount })),
+                )
+            } else {
+                map { it.testResults }.flatten().sortedBy { it.stepCount }
+            } as List<TestResult<Any, ParameterGroup>>,
             settings,
             completed,
             threw,
@@ -590,8 +698,16 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             skippedSteps = map { it.skippedTests }.flatten().sorted(),
             loopCount = loopCount,
             randomTrace = random.finish(),
+            statistics = statistics,
+            testedCount = sumOf { it.testedCount },
+            failedCount = sumOf { it.failedCount },
         )
 
+        val previousCancellation = currentCancellation.get()
+        currentCancellation.set(cancellation)
+        val previousOutputLimits = currentOutputLimits.get()
+        currentOutputLimits.set(OutputLimits.from(settings))
+
         @Suppress("TooGenericExceptionCaught")
         try {
             fun addRunner(generators: Generators, receivers: Value<Any?>? = null) = TestRunner(
@@ -606,6 +722,10 @@ class Submission(val solution: Solution, val submission: Class<*>) {
                 receivers,
                 random,
                 testingEventListener,
+                transcriptSession,
+                statistics,
+                deferredRuns,
+                stepBudget,
             ).also { runner ->
                 if (receivers == null && !solution.skipReceiver) {
                     runner.next(stepCount++)
@@ -645,7 +765,7 @@ class Submission(val solution: Solution, val submission: Class<*>) {
 
                 val finishedReceivers = runners.createdCount() >= neededReceivers
 
-                if (Thread.interrupted()) {
+                if (Thread.interrupted() || cancellation?.cancelled == true) {
                     return runners.toResults(timeout = true)
                 }
 
@@ -675,6 +795,9 @@ class Submission(val solution: Solution, val submission: Class<*>) {
                             receiverGenerator?.receivers?.add(runner.receivers as Value<Any>)
                         }
                     }.also {
+                        if (stepBudget?.exceeded == true) {
+                            return runners.toResults()
+                        }
                         if (it.failed) {
                             if ((!settings.shrink!! || it.lastComplexity!!.level <= Complexity.MIN) &&
                                 !settings.runAll
@@ -702,6 +825,9 @@ class Submission(val solution: Solution, val submission: Class<*>) {
                         }
                     }
                 }
+                if (stepBudget?.exceeded == true) {
+                    return runners.toResults()
+                }
                 if (currentRunner!!.failed) {
                     if ((!settings.shrink!! || currentRunner!!.lastComplexity!!.level <= Complexity.MIN) &&
                         !settings.runAll
@@ -727,15 +853,177 @@ class Submission(val solution: Solution, val submission: Class<*>) {
             return runners.toResults(completed = true)
         } catch (e: FollowTraceException) {
             throw e
+        } catch (_: TestingCancelled) {
+            return runners.toResults(timeout = true)
         } catch (e: Throwable) {
             if (settings.testing!!) {
                 throw e
             }
             return runners.toResults(threw = e)
+        } finally {
+            currentCancellation.set(previousCancellation)
+            currentOutputLimits.set(previousOutputLimits)
+            pipeline?.close()
+        }
+    }
+
+    /*
+     * Splits the test budget across independent seeds run concurrently on the passed executor, each with its own
+     * random stream, generators, runners, and cloner. Shard results are merged in seed order, so the merged results
+     * and their explanation do not depend on which shard finishes first. Every shard runs at least one test, so seeds
+     * beyond the test count are dropped. If a shard throws, the others are cancelled and the exception rethrown.
+     * Interrupting the calling thread interrupts the shards, whose results are still merged, and the interrupt is
+     * left set when this returns.
+     */
+    fun testSharded(
+        seeds: List<Int>,
+        executor: Executor,
+        passedSettings: Settings = Settings(),
+        captureOutputControlInput: CaptureOutputControlInput = ::concurrentCaptureOutputControlInput,
+    ): TestResults {
+        require(seeds.isNotEmpty()) { "Sharded testing requires at least one seed" }
+        require(seeds.none { it == -1 }) { "Sharded testing requires fixed seeds" }
+        require(seeds.toSet().size == seeds.size) { "Sharded testing requires distinct seeds" }
+        if (solution.solution.isDesignOnly() || solution.solution.isAbstract()) {
+            throw DesignOnlyTestingError(solution.solution)
+        }
+        val settings = solution.setCounts(Settings.DEFAULTS merge passedSettings)
+
+        val shardSeeds = seeds.take(settings.testCount.coerceAtLeast(1))
+        val shardThreads = arrayOfNulls<Thread>(shardSeeds.size)
+        val completion = ExecutorCompletionService<TestResults>(executor)
+        val shards = shardSeeds.mapIndexed { index, seed ->
+            val testCount = settings.testCount / shardSeeds.size +
+                if (index < settings.testCount % shardSeeds.size) {
+                    1
+                } else {
+                    0
+                }
+            completion.submit {
+                synchronized(shardThreads) {
+                    shardThreads[index] = Thread.currentThread()
+                }
+                try {
+                    test(
+                        passedSettings.copy(seed = seed, testCount = testCount),
+                        captureOutputControlInput,
+                        cloner = CopyEngine(),
+                    )
+                } finally {
+                    synchronized(shardThreads) {
+                        shardThreads[index] = null
+                    }
+                }
+            }
+        }
+
+        val results = arrayOfNulls<TestResults>(shards.size)
+        var interrupted = false
+        try {
+            repeat(shards.size) {
+                var shard: Future<TestResults>? = null
+                while (shard == null) {
+                    try {
+                        shard = completion.take()
+                    } catch (_: InterruptedException) {
+                        // Interrupted shards still finish with results, which are waited for
+                        interrupted = true
+                        synchronized(shardThreads) {
+                            shardThreads.forEach { it?.interrupt() }
+                        }
+                    }
+                }
+                try {
+                    results[shards.indexOf(shard)] = shard.get()
+                } catch (e: ExecutionException) {
+                    shards.forEach { it.cancel(true) }
+                    throw e.cause ?: e
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt()
+            }
         }
+        return results.map { it!! }.merge(settings)
+    }
+
+    /*
+     * Tests on the passed executor, by default a virtual thread per test where available. At the deadline testing is
+     * cancelled and the testing thread interrupted, and the future completes with the results of the steps that
+     * finished with timeout set. Submissions that ignore both and never print or read input cannot be stopped, so if
+     * testing has not stopped within the grace period the future completes exceptionally with a TimeoutException.
+     * Cancelling the future also cancels testing.
+     */
+    fun testAsync(
+        passedSettings: Settings = Settings(),
+        deadline: Instant,
+        captureOutputControlInput: CaptureOutputControlInput = ::concurrentCaptureOutputControlInput,
+        executor: Executor = asyncTestingExecutor,
+        grace: Duration = Duration.ofSeconds(1),
+    ): CompletableFuture<TestResults> {
+        val cancellation = CancellationToken()
+        var testingThread: Thread? = null
+        val lock = Any()
+
+        fun cancel() {
+            cancellation.cancel()
+            synchronized(lock) {
+                testingThread?.interrupt()
+            }
+        }
+
+        val future = CompletableFuture.supplyAsync({
+            synchronized(lock) {
+                testingThread = Thread.currentThread()
+            }
+            try {
+                test(passedSettings, captureOutputControlInput, cancellation = cancellation)
+            } finally {
+                synchronized(lock) {
+                    testingThread = null
+                }
+                // Clear an interrupt that arrived after testing finished so that it does not leak to pooled threads
+                Thread.interrupted()
+            }
+        }, executor)
+
+        val untilDeadline = Duration.between(Instant.now(), deadline).toNanos().coerceAtLeast(0)
+        val cancelAtDeadline = deadlineScheduler.schedule(::cancel, untilDeadline, TimeUnit.NANOSECONDS)
+        val failAfterGrace = deadlineScheduler.schedule(
+            { future.completeExceptionally(TimeoutException("Testing did not stop after the deadline")) },
+            untilDeadline + grace.toNanos(),
+            TimeUnit.NANOSECONDS,
+        )
+        future.whenComplete { _, _ ->
+            cancelAtDeadline.cancel(false)
+            failAfterGrace.cancel(false)
+            if (future.isCancelled) {
+                cancel()
+            }
+        }
+        return future
     }
 }
 
+private fun List<TestResults>.merge(settings: Settings) = TestResults(
+    flatMap { it.results },
+    settings,
+    all { it.completed },
+    firstNotNullOfOrNull { it.threw },
+    any { it.timeout },
+    all { it.finishedReceivers },
+    sumOf { it.untestedReceivers },
+    skippedSteps = flatMap { it.skippedSteps },
+    stepCount = sumOf { it.stepCount },
+    loopCount = sumOf { it.loopCount },
+    statistics = RunStatistics().also { statistics ->
+        forEach { statistics += it.statistics }
+    },
+    testedCount = sumOf { it.testedCount },
+    failedCount = sumOf { it.failedCount },
+)
+
 sealed class SubmissionDesignError(
     message: String,
     @Suppress(
@@ -3,6 +3,7 @@
 package edu.illinois.cs.cs125.jenisol.core
 
 import edu.illinois.cs.cs125.jenisol.core.generators.Complexity
+import edu.illinois.cs.cs125.jenisol.core.generators.Fingerprint
 import edu.illinois.cs.cs125.jenisol.core.generators.Generators
 import edu.illinois.cs.cs125.jenisol.core.generators.JenisolFileSystem
 import edu.illinois.cs.cs125.jenisol.core.generators.ParameterValues
@@ -10,7 +11,6 @@ import edu.illinois.cs.cs125.jenisol.core.generators.Parameters
 import edu.illinois.cs.cs125.jenisol.core.generators.SystemIn
 import edu.illinois.cs.cs125.jenisol.core.generators.Value
 import edu.illinois.cs.cs125.jenisol.core.generators.ZeroComplexity
-import edu.illinois.cs.cs125.jenisol.core.generators.boxType
 import edu.illinois.cs.cs125.jenisol.core.generators.fileSystemDummyExecutable
 import edu.illinois.cs.cs125.jenisol.core.generators.getArrayDimension
 import edu.illinois.cs.cs125.jenisol.core.generators.getArrayType
@@ -18,7 +18,9 @@ import edu.illinois.cs.cs125.jenisol.core.generators.systemInDummyExecutable
 import java.lang.reflect.Constructor
 import java.lang.reflect.Executable
 import java.lang.reflect.Method
-import kotlin.reflect.full.companionObjectInstance
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.TimeUnit
 
 data class Result<T, P : ParameterGroup>(
     @JvmField val parameters: P,
@@ -32,6 +34,10 @@ data class Result<T, P : ParameterGroup>(
     @JvmField val tag: Any?,
     @JvmField val modifiedParameters: Boolean,
     @JvmField val lengthNanos: Long,
+    @JvmField val stoppedAtDivergence: Boolean = false,
+    @JvmField val fileSystem: FileSystemManifest? = null,
+    @JvmField val stdoutHash: Long = 0,
+    @JvmField val stderrHash: Long = 0,
 ) {
     @Suppress("UNCHECKED_CAST")
     constructor(
@@ -51,6 +57,10 @@ data class Result<T, P : ParameterGroup>(
         capturedResult.tag,
         modifiedParameters,
         lengthNanos,
+        capturedResult.stoppedAtDivergence,
+        capturedResult.fileSystem,
+        capturedResult.stdoutHash,
+        capturedResult.stderrHash,
     )
 
     override fun toString(): String = "Result(parameters=$parameters, " +
@@ -88,6 +98,14 @@ internal fun <P : ParameterGroup> Executable.formatBoundMethodCall(parameterValu
 
 private fun String.hasUnprintableCharacter() = this.any { char -> !char.isWhitespace() && char < 32.toChar() }
 
+// Long output is explained by a diff from its first difference rather than printed in full
+private fun outputDiff(solution: String, submission: String, what: String) =
+    if (solution.length > OutputDiff.FULL_OUTPUT_LENGTH || submission.length > OutputDiff.FULL_OUTPUT_LENGTH) {
+        OutputDiff(solution, submission).explain(what)
+    } else {
+        null
+    }
+
 @Suppress("unused")
 data class TestResult<T, P : ParameterGroup>(
     @JvmField val runnerID: Int,
@@ -116,9 +134,9 @@ data class TestResult<T, P : ParameterGroup>(
     @JvmField val solutionTimeNanos: Long,
     @JvmField val submissionTimeNanos: Long,
 ) {
+    // Only made when read, so steps that never run the unmodified copy don't make it
     @Suppress("UNCHECKED_CAST")
-    @JvmField
-    val parameters: P = allParameters.unmodifiedCopy.toParameterGroup() as P
+    val parameters: P by lazy { allParameters.unmodifiedCopy.toParameterGroup() as P }
 
     enum class Type { CONSTRUCTOR, INITIALIZER, METHOD, STATIC_METHOD, FACTORY_METHOD, COPY_CONSTRUCTOR }
     enum class Differs {
@@ -130,6 +148,8 @@ data class TestResult<T, P : ParameterGroup>(
         PARAMETERS,
         VERIFIER_THREW,
         INSTANCE_VALIDATION_THREW,
+        BUDGET_EXCEEDED,
+        FILESYSTEM,
     }
 
     val succeeded: Boolean
@@ -138,12 +158,19 @@ data class TestResult<T, P : ParameterGroup>(
         get() = !succeeded
 
     var verifierThrew: Throwable? = null
+    var stepUsage: StepUsage? = null
 
     @Suppress("ComplexMethod", "LongMethod", "NestedBlockDepth")
     fun explain(stacktrace: Boolean = false, omitMethodName: Boolean = false): String {
         check(failed) { "Can't explain successful result" }
 
         val resultString = when {
+            differs.contains(Differs.BUDGET_EXCEEDED) -> {
+                val usage = stepUsage!!
+                "Submission exceeded the step budget: used ${TimeUnit.NANOSECONDS.toMillis(usage.cpuNanos)}ms " +
+                    "of CPU time and allocated ${usage.allocatedBytes} bytes"
+            }
+
             verifierThrew != null -> "Verifier threw an exception: ${verifierThrew!!.safePrint()}"
             differs.contains(Differs.THREW) -> {
                 if (solution.threw == null) {
@@ -171,7 +198,7 @@ data class TestResult<T, P : ParameterGroup>(
             }
 
             differs.contains(Differs.STDOUT) -> {
-                """
+                outputDiff(solution.stdout, submission.stdout, "output") ?: """
 Solution printed:
 -->
 ${solution.stdout}<-- (length ${solution.stdout.length})
@@ -187,7 +214,7 @@ ${submission.stdout}<-- ${
             }
 
             differs.contains(Differs.STDERR) -> {
-                """
+                outputDiff(solution.stderr, submission.stderr, "output to STDERR") ?: """
 Solution printed to STDERR:
 -->
 ${solution.stderr}<-- (length ${solution.stderr.length})
@@ -203,7 +230,7 @@ ${submission.stderr}<-- ${
             }
 
             differs.contains(Differs.INTERLEAVED_OUTPUT) -> {
-                """
+                outputDiff(solution.interleavedOutput, submission.interleavedOutput, "input and output") ?: """
 Combined solution input and output:
 -->
 ${solution.interleavedOutput}<-- (length ${solution.interleavedOutput.length})
@@ -218,6 +245,8 @@ ${submission.interleavedOutput}<-- ${
                 }""".trim()
             }
 
+            differs.contains(Differs.FILESYSTEM) -> solution.fileSystem!!.explain(submission.fileSystem!!)
+
             differs.contains(Differs.RETURN) -> {
                 """
 Solution returned: ${print(solution.returned)}
@@ -254,6 +283,11 @@ Submission modified its parameters to ${
 
             else -> error("Unexplained result")
         }
+        val truncation = if (submission.truncatedLines > 0) {
+            "\nSubmission output was truncated at the output limit, dropping ${submission.truncatedLines} lines"
+        } else {
+            ""
+        }
         return "Testing ${
             if (omitMethodName) {
                 ""
@@ -261,7 +295,7 @@ Submission modified its parameters to ${
                 "$submissionMethodString "
             }
         }failed:\n" +
-            "$resultString${message?.let { "\nAdditional Explanation: $it" } ?: ""}"
+            "$resultString$truncation${message?.let { "\nAdditional Explanation: $it" } ?: ""}"
     }
 
     override fun toString(): String = "TestResult(runnerID=$runnerID," +
@@ -322,11 +356,14 @@ class TestResults(
     val stepCount: Int,
     val loopCount: Int,
     val randomTrace: List<Int>? = null,
+    val statistics: RunStatistics = RunStatistics(),
+    val testedCount: Int = results.size,
+    val failedCount: Int = results.count { it.failed },
 ) : List<TestResult<Any, ParameterGroup>> by results {
     val succeeded = designOnly ?: finishedReceivers && all { it.succeeded } && completed
     val failed = !succeeded
     fun explain(stacktrace: Boolean = false) = if (succeeded) {
-        "Passed by completing ${results.size} tests"
+        "Passed by completing $testedCount tests"
     } else if (!finishedReceivers) {
         "Didn't complete generating receivers"
     } else if (!completed && !failed) {
@@ -362,6 +399,93 @@ class TestResults(
     }
 }
 
+class RunStatistics {
+    var invocations = 0
+        internal set
+    var replayedSolutionSteps = 0
+        internal set
+    var unmodifiedCopyRuns = 0
+        internal set
+    var skippedUnmodifiedCopyRuns = 0
+        internal set
+    var deferredUnmodifiedCopyRuns = 0
+        internal set
+    var skippedCopyRuns = 0
+        internal set
+
+    internal operator fun plusAssign(other: RunStatistics) {
+        invocations += other.invocations
+        replayedSolutionSteps += other.replayedSolutionSteps
+        unmodifiedCopyRuns += other.unmodifiedCopyRuns
+        skippedUnmodifiedCopyRuns += other.skippedUnmodifiedCopyRuns
+        deferredUnmodifiedCopyRuns += other.deferredUnmodifiedCopyRuns
+        skippedCopyRuns += other.skippedCopyRuns
+    }
+
+    val savedInvocations: Int
+        get() = skippedUnmodifiedCopyRuns - deferredUnmodifiedCopyRuns + replayedSolutionSteps * 2 + skippedCopyRuns
+
+    override fun toString() = "RunStatistics(invocations=$invocations, " +
+        "replayedSolutionSteps=$replayedSolutionSteps, " +
+        "unmodifiedCopyRuns=$unmodifiedCopyRuns, " +
+        "skippedUnmodifiedCopyRuns=$skippedUnmodifiedCopyRuns, " +
+        "deferredUnmodifiedCopyRuns=$deferredUnmodifiedCopyRuns, " +
+        "skippedCopyRuns=$skippedCopyRuns)"
+}
+
+/*
+ * Unmodified copy invocations skipped on steps that did not return receivers. They are only needed to keep receiver
+ * copies in sync, so they are run in order when a later step needs one of the receivers they touched. At most
+ * MAX_PENDING are held, with the oldest run early beyond that, since it depends on no run still pending.
+ */
+class DeferredRuns internal constructor(private val statistics: RunStatistics) {
+    private class Deferred(val touches: Set<Any>, val run: () -> Unit)
+
+    private val pending = ArrayDeque<Deferred>()
+
+    internal fun defer(touches: Set<Any>, run: () -> Unit) {
+        statistics.skippedUnmodifiedCopyRuns++
+        if (touches.isEmpty()) {
+            return
+        }
+        pending += Deferred(touches, run)
+        if (pending.size > MAX_PENDING) {
+            pending.removeFirst().run()
+            statistics.deferredUnmodifiedCopyRuns++
+        }
+    }
+
+    internal val size: Int
+        get() = pending.size
+
+    internal fun flush(touches: Set<Any>) {
+        if (pending.isEmpty() || touches.isEmpty()) {
+            return
+        }
+        val needed = identitySetOf(touches)
+        val selected = pending.indices.reversed().filter { index ->
+            pending[index].touches.any { it in needed }.also { touched ->
+                if (touched) {
+                    needed.addAll(pending[index].touches)
+                }
+            }
+        }.reversed()
+        val runs = selected.map { pending[it] }
+        selected.reversed().forEach { pending.removeAt(it) }
+        runs.forEach { deferred ->
+            deferred.run()
+            statistics.deferredUnmodifiedCopyRuns++
+        }
+    }
+
+    companion object {
+        internal const val MAX_PENDING = 64
+    }
+}
+
+private fun identitySetOf(values: Collection<Any> = listOf()): MutableSet<Any> =
+    Collections.newSetFromMap(IdentityHashMap<Any, Boolean>()).also { it.addAll(values) }
+
 @Suppress("LongParameterList")
 class TestRunner(
     val runnerID: Int,
@@ -375,9 +499,31 @@ class TestRunner(
     var receivers: Value<Any?>?,
     val random: Submission.RecordingRandom,
     val testingEventListener: TestingEventListener,
+    private val transcript: TranscriptSession? = null,
+    val statistics: RunStatistics = RunStatistics(),
+    private val deferredRuns: DeferredRuns = DeferredRuns(statistics),
+    private val budget: StepBudget? = null,
 ) {
     val testResults = mutableListOf<TestResult<*, *>>()
     val skippedTests = mutableListOf<Int>()
+    var testedCount = 0
+        private set
+    var failedCount = 0
+        private set
+
+    // When streaming only the failure that TestResults.explain would choose is retained
+    private fun record(step: TestResult<*, *>) {
+        testedCount++
+        if (step.failed) {
+            failedCount++
+        }
+        if (!settings.streaming!!) {
+            testResults.add(step)
+        } else if (step.failed && testResults.firstOrNull()?.let { step.complexity < it.complexity } != false) {
+            testResults.clear()
+            testResults.add(step)
+        }
+    }
 
     var staticOnly = submission.solution.skipReceiver
 
@@ -413,14 +559,14 @@ class TestRunner(
 
     init {
         if (receivers == null && staticOnly) {
-            receivers = if (!submission.submission.hasKotlinCompanion()) {
+            receivers = if (submission.companionInstance == null) {
                 Value(null, null, null, null, null, ZeroComplexity)
             } else {
                 Value(
                     null,
-                    submission.submission.kotlin.companionObjectInstance,
+                    submission.companionInstance,
                     null,
-                    submission.submission.kotlin.companionObjectInstance,
+                    submission.companionInstance,
                     null,
                     ZeroComplexity,
                 )
@@ -431,49 +577,58 @@ class TestRunner(
 
     var count = 0
 
-    fun Executable.checkParameters(parameters: Array<Any?>) {
-        val mismatchedTypes = parameterTypes.zip(parameters).filter { (klass, parameter) ->
-            if (parameter == null) {
-                klass.isPrimitive
-            } else {
-                !klass.boxType().isAssignableFrom(parameter::class.java)
-            }
-        }
-
-        check(mismatchedTypes.isEmpty()) {
-            mismatchedTypes.first().let { (klass, parameter) -> "Can't assign $klass from $parameter" }
-        }
-    }
-
-    fun Executable.pairRun(
+    fun Invoker.pairRun(
         receiver: Any?,
         parameters: Array<Any?>,
         parametersCopy: Array<Any?>? = null,
         systemInParameters: SystemIn? = null,
         fileSystemParameters: JenisolFileSystem? = null,
+        budget: StepBudget? = null,
+        expectedStdout: String? = null,
+        keepOutput: Boolean = true,
+        fingerprintedCopy: (() -> Array<Any?>)? = null,
+        chargeOutput: Boolean = false,
     ): Result<Any, ParameterGroup> {
         checkParameters(parameters)
         if (parametersCopy != null) {
             checkParameters(parametersCopy)
         }
+        // Fingerprinted parameters are only compared against their copy if the call changed their fingerprint
+        val fingerprint = fingerprintedCopy?.let { Fingerprint.of(parameters) }
 
         val systemIn = systemInParameters?.input ?: listOf()
         val fileSystem = fileSystemParameters?.files ?: mapOf()
 
+        statistics.invocations++
         val started = System.nanoTime()
-        return captureOutputControlInput(systemIn, fileSystem) {
-            @Suppress("SpreadOperator")
-            unwrap {
-                when (this@pairRun) {
-                    is Method -> this@pairRun.invoke(receiver, *parameters)
-                    is Constructor<*> -> this@pairRun.newInstance(*parameters)
+        // Only the filesystems left by runs whose results are compared are snapshotted
+        val snapshot = settings.captureFileSystem!! && fileSystemParameters != null && keepOutput
+        val limits = currentOutputLimits.get()?.let { if (chargeOutput) it else it.uncharged }
+        val capture = {
+            expectOutput(expectedStdout, settings.outputDivergenceMargin) {
+                snapshotFileSystem(snapshot) {
+                    withOutputLimits(limits) {
+                        captureOutputControlInput(systemIn, fileSystem) {
+                            this@pairRun(receiver, parameters)
+                        }
+                    }
                 }
             }
-        }.let {
+        }
+        return (budget?.track(capture) ?: capture()).let {
             Result(
                 parameters,
-                it,
-                parametersCopy?.let { !submission.compare(parameters, parametersCopy) } ?: false,
+                if (keepOutput) {
+                    it
+                } else {
+                    it.withoutOutput()
+                },
+                if (fingerprintedCopy != null) {
+                    (fingerprint == null || fingerprint != Fingerprint.of(parameters)) &&
+                        !submission.compare(parameters, fingerprintedCopy())
+                } else {
+                    parametersCopy?.let { !submission.compare(parameters, parametersCopy) } ?: false
+                },
                 System.nanoTime() - started,
             )
         }
@@ -529,36 +684,41 @@ class TestRunner(
 
     @Suppress("ReturnCount")
     private fun extractReceivers(
-        results: ParameterValues<Result<Any, ParameterGroup>>,
+        results: ParameterValues<Result<Any, ParameterGroup>?>,
         parameters: Parameters,
         settings: Settings,
     ): MutableList<Value<Any?>> {
-        if (!SolutionSubmissionResultPair(results.solution, results.submission).returnedReceivers()) {
+        val solutionResult = results.solution!!
+        val submissionResult = results.submission!!
+        if (!SolutionSubmissionResultPair(solutionResult, submissionResult).returnedReceivers()) {
             return mutableListOf()
         }
 
-        check(results.solution.returned!!::class.java == results.solutionCopy.returned!!::class.java) {
+        // Execution copies are not run when parameters are fingerprinted, and then their receivers are never used
+        val solutionCopy = results.solutionCopy?.returned
+        val submissionCopy = results.submissionCopy?.returned
+        check(solutionCopy == null || solutionResult.returned!!::class.java == solutionCopy::class.java) {
             "${parameters.solutionCopy.map { it }} ${parameters.solution.map { it }} " +
-                "${results.solution.returned::class.java} ${results.solutionCopy.returned::class.java}"
+                "${solutionResult.returned!!::class.java} ${solutionCopy!!::class.java}"
         }
 
-        return if (!results.solution.returned::class.java.isArray) {
+        return if (!solutionResult.returned!!::class.java.isArray) {
             listOf(
                 Value(
-                    results.solution.returned,
-                    results.submission.returned,
-                    results.solutionCopy.returned,
-                    results.submissionCopy.returned,
-                    results.unmodifiedCopy.returned,
+                    solutionResult.returned,
+                    submissionResult.returned,
+                    solutionCopy,
+                    submissionCopy,
+                    results.unmodifiedCopy!!.returned,
                     parameters.complexity,
                 ),
             )
         } else {
-            val solutions = results.solution.returned as Array<*>
-            val submissions = results.submission.returned as Array<*>
-            val solutionCopies = results.solutionCopy.returned as Array<*>
-            val submissionCopies = results.submissionCopy.returned as Array<*>
-            val unmodifiedCopies = results.unmodifiedCopy.returned as Array<*>
+            val solutions = solutionResult.returned as Array<*>
+            val submissions = submissionResult.returned as Array<*>
+            val solutionCopies = solutionCopy as Array<*>?
+            val submissionCopies = submissionCopy as Array<*>?
+            val unmodifiedCopies = results.unmodifiedCopy!!.returned as Array<*>
 
             if (solutions.size != submissions.size && !settings.runAll!!) {
                 return mutableListOf()
@@ -567,8 +727,8 @@ class TestRunner(
                 Value(
                     solutions[i],
                     submissions.getOrNull(i),
-                    solutionCopies[i],
-                    submissionCopies.getOrNull(i),
+                    solutionCopies?.get(i),
+                    submissionCopies?.getOrNull(i),
                     unmodifiedCopies.getOrNull(i),
                     parameters.complexity,
                 )
@@ -600,6 +760,34 @@ class TestRunner(
         }.toMutableList()
     }
 
+    /*
+     * Receivers are tracked by their submission copies, which pair one-to-one with the unmodified copies, so the
+     * unmodified copies are only made when they run. Static-only testing has no receivers, and parameters whose types
+     * can't hold one are not searched.
+     */
+    private fun touchedReceivers(executable: Executable, stepReceivers: Value<*>, parameters: Parameters): Set<Any> {
+        val receivers = identitySetOf()
+        if (staticOnly) {
+            return receivers
+        }
+        fun add(value: Any?) {
+            when (value) {
+                null -> {}
+                is Array<*> -> value.forEach { add(it) }
+                is Iterable<*> -> value.forEach { add(it) }
+                is Map<*, *> -> value.forEach { (key, entry) -> add(key).also { add(entry) } }
+                else -> if (value::class.java == submission.submission) {
+                    receivers += value
+                }
+            }
+        }
+        add(stepReceivers.submission)
+        if (!executable.genericParameterTypes.all { Fingerprint.covers(it) }) {
+            parameters.submission.forEach { add(it) }
+        }
+        return receivers
+    }
+
     fun willSkip() = settings.runAll!! && !staticOnly && created && receivers!!.submission == null
 
     @Suppress("ComplexMethod", "LongMethod", "ComplexCondition", "ReturnCount", "NestedBlockDepth")
@@ -617,20 +805,14 @@ class TestRunner(
         // Only proceed past failures if forced
         check(!failed || (settings.runAll!! || staticOnly))
 
-        val isBoth = solutionExecutable.isAnnotationPresent(Both::class.java)
+        val plan = submission.executionPlan[solutionExecutable]
+            ?: error("couldn't find a submission method that should exist")
+        val submissionExecutable = plan.submissionExecutable
 
         val start = System.nanoTime()
-        val submissionExecutable = if (isBoth) {
-            solutionExecutable
-        } else {
-            submission.submissionExecutables[solutionExecutable]
-                ?: error("couldn't find a submission method that should exist")
-        }
-        check(solutionExecutable::class.java == submissionExecutable::class.java) {
-            "solution and submission executable are not the same type"
-        }
+        budget?.reset()
 
-        val (parameters, generator) = if (isBoth) {
+        val (parameters, generator) = if (plan.isBoth) {
             Pair(Parameters.fromReceivers(receivers!!), null)
         } else {
             generators[solutionExecutable]?.let {
@@ -651,23 +833,18 @@ class TestRunner(
                     TestResult.Type.COPY_CONSTRUCTOR
                 }
 
-                is Method -> {
-                    when (staticOnly || submission.solution.fauxStatic) {
-                        true -> TestResult.Type.STATIC_METHOD
-                        false -> TestResult.Type.METHOD
-                    }
-                }
+                is Method -> plan.methodType
             }
         }
 
         val stepReceivers = when {
-            solutionExecutable.isStatic() && submissionExecutable.isKotlinCompanion() -> {
+            plan.submissionCompanion != null -> {
                 Value(
                     receivers?.solution,
-                    submission.submission.kotlin.companionObjectInstance,
+                    plan.submissionCompanion,
                     receivers?.solutionCopy,
-                    submission.submission.kotlin.companionObjectInstance,
-                    submission.submission.kotlin.companionObjectInstance,
+                    plan.submissionCompanion,
+                    plan.submissionCompanion,
                     receivers?.complexity ?: ZeroComplexity,
                 )
             }
@@ -676,11 +853,8 @@ class TestRunner(
             else -> Value(null, null, null, null, null, ZeroComplexity)
         } ?: error("Didn't set receivers")
 
-        @Suppress("SpreadOperator")
         try {
-            unwrap {
-                submission.solution.filters[solutionExecutable]?.invoke(null, *parameters.solution)
-            }
+            plan.filter?.invoke(null, parameters.solution)
         } catch (_: SkipTest) {
             return
         } catch (_: BoundComplexity) {
@@ -708,21 +882,39 @@ class TestRunner(
             null
         }
 
+        val randomIndex = random.currentIndex
+        val replayed = transcript?.replay(runnerID, stepCount, solutionExecutable, randomIndex)
+
+        // Without @Both methods or parameters that can hold receivers, the execution copies are only needed to keep
+        // receiver copies in sync for later execution copies, so fingerprints can replace all of them
+        val fingerprinted = settings.fingerprintParameters!! && submission.solution.fingerprintable
+
         // Have to run these together to keep things in sync
-        val solutionResult = solutionExecutable.pairRun(
+        val solutionResult = replayed?.solution ?: plan.solution.pairRun(
             stepReceivers.solution,
             parameters.solution,
-            parameters.solutionCopy,
+            parameters.solutionCopy.takeUnless { fingerprinted },
             systemInParameters?.solution?.get(0) as SystemIn?,
             fileSystemParameters?.solution?.get(0) as JenisolFileSystem?,
+            fingerprintedCopy = if (fingerprinted) {
+                { parameters.solutionCopy }
+            } else {
+                null
+            },
         )
 
-        val solutionCopy = solutionExecutable.pairRun(
+        // Only the returned values and parameters of the execution copies are used, so their output is not decoded
+        val solutionCopy = if (fingerprinted) null else replayed?.solutionCopy ?: plan.solution.pairRun(
             stepReceivers.solutionCopy,
             parameters.solutionCopy,
             systemInParameters = systemInParameters?.solutionCopy?.get(0) as SystemIn?,
             fileSystemParameters = fileSystemParameters?.solutionCopy?.get(0) as JenisolFileSystem?,
+            keepOutput = false,
         )
+        if (replayed != null) {
+            statistics.replayedSolutionSteps++
+        }
+        transcript?.record(runnerID, stepCount, solutionExecutable, randomIndex, solutionResult, solutionCopy)
 
         if (solutionResult.threw != null &&
             TestingControlException::class.java.isAssignableFrom(solutionResult.threw::class.java)
@@ -743,21 +935,45 @@ class TestRunner(
             submission.submission,
         )
 
-        val submissionResult = submissionExecutable.pairRun(
+        // Before the submission runs, so its parameters still hold what the unmodified copy will be passed
+        val unmodifiedCopyTouches = touchedReceivers(solutionExecutable, stepReceivers, parameters)
+
+        val submissionResult = plan.submission.pairRun(
             stepReceivers.submission,
             parameters.submission,
-            parameters.submissionCopy,
+            parameters.submissionCopy.takeUnless { fingerprinted },
             systemInParameters?.submission?.get(0) as SystemIn?,
             fileSystemParameters?.submission?.get(0) as JenisolFileSystem?,
+            budget,
+            submission.expectedStdout(solutionExecutable, solutionResult),
+            fingerprintedCopy = if (fingerprinted) {
+                { parameters.submissionCopy }
+            } else {
+                null
+            },
+            chargeOutput = true,
         )
 
-        val submissionCopy = submissionExecutable.pairRun(
+        // The copy is likely to print the same wrong output, so stop it in the same way
+        val submissionCopy = if (fingerprinted) null else plan.submission.pairRun(
             stepReceivers.submissionCopy,
             parameters.submissionCopy,
             systemInParameters = systemInParameters?.submissionCopy?.get(0) as SystemIn?,
             fileSystemParameters = fileSystemParameters?.submissionCopy?.get(0) as JenisolFileSystem?,
+            budget = budget,
+            expectedStdout = if (submissionResult.stoppedAtDivergence) {
+                submission.expectedStdout(solutionExecutable, solutionResult)
+            } else {
+                null
+            },
+            keepOutput = false,
         )
 
+        if (fingerprinted) {
+            // Replayed steps already count the solution copy as saved
+            statistics.skippedCopyRuns += if (replayed != null) 1 else 2
+        }
+
         val linkedReceivers = linkReceivers(
             SolutionSubmissionResultPair(solutionResult, submissionResult),
             settings,
@@ -791,23 +1007,49 @@ class TestRunner(
             submissionTimeNanos = submissionResult.lengthNanos,
         )
 
-        val unmodifiedCopy = submissionExecutable.pairRun(
-            stepReceivers.unmodifiedCopy,
-            parameters.unmodifiedCopy,
-            systemInParameters = systemInParameters?.unmodifiedCopy?.get(0) as SystemIn?,
-            fileSystemParameters = fileSystemParameters?.unmodifiedCopy?.get(0) as JenisolFileSystem?,
-        )
+        val runUnmodifiedCopy = { runBudget: StepBudget? ->
+            plan.submission.pairRun(
+                stepReceivers.unmodifiedCopy,
+                parameters.unmodifiedCopy,
+                systemInParameters = systemInParameters?.unmodifiedCopy?.get(0) as SystemIn?,
+                fileSystemParameters = fileSystemParameters?.unmodifiedCopy?.get(0) as JenisolFileSystem?,
+                budget = runBudget,
+                keepOutput = false,
+            )
+        }
+        // The unmodified copy is only consumed when receivers are returned
+        val createdReceivers = if (SolutionSubmissionResultPair(solutionResult, submissionResult).returnedReceivers()) {
+            deferredRuns.flush(unmodifiedCopyTouches)
+            statistics.unmodifiedCopyRuns++
+            extractReceivers(
+                ParameterValues(
+                    solutionResult,
+                    submissionResult,
+                    solutionCopy,
+                    submissionCopy,
+                    runUnmodifiedCopy(budget),
+                ),
+                parameters,
+                settings,
+            )
+        } else {
+            // Deferred runs happen during later steps, so are not charged against their budgets
+            deferredRuns.defer(unmodifiedCopyTouches) { runUnmodifiedCopy(null) }
+            mutableListOf()
+        }
 
-        val createdReceivers = extractReceivers(
-            ParameterValues(solutionResult, submissionResult, solutionCopy, submissionCopy, unmodifiedCopy),
-            parameters,
-            settings,
-        )
+        if (budget?.exceeded == true) {
+            step.differs.add(TestResult.Differs.BUDGET_EXCEEDED)
+            step.stepUsage = budget.usage
+        }
+        if (submissionResult.stoppedAtDivergence) {
+            step.differs.add(TestResult.Differs.STDOUT)
+        }
 
-        if (creating && submissionResult.returned != null && submission.solution.instanceValidator != null) {
+        if (creating && submissionResult.returned != null && submission.instanceValidator != null) {
             @Suppress("TooGenericExceptionCaught")
             try {
-                unwrap { submission.solution.instanceValidator.invoke(null, submissionResult.returned) }
+                submission.instanceValidator(null, arrayOf(submissionResult.returned))
             } catch (@Suppress("DEPRECATION") e: ThreadDeath) {
                 throw e
             } catch (e: Throwable) {
@@ -819,7 +1061,11 @@ class TestRunner(
         if (step.succeeded) {
             submission.verify(solutionExecutable, step)
         }
-        testResults.add(step)
+        if (step.failed) {
+            // Later steps no longer follow the sequence the transcript was recorded from
+            transcript?.diverge(stepCount)
+        }
+        record(step)
 
         if (step.succeeded || settings.runAll!!) {
             generator?.next()
@@ -0,0 +1,112 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import com.rits.cloning.Cloner
+import java.lang.reflect.Executable
+import java.util.stream.BaseStream
+
+/*
+ * The solution side of a test run for a fixed seed and settings: for each step, the results of running the solution
+ * and its copy. Replaying a transcript lets Submission.test skip the solution invocations for submissions that follow
+ * the same testing sequence. Only solutions without receiver state can be replayed, since solution receivers are not
+ * modified when solution invocations are skipped. The copy is not run when parameters are fingerprinted.
+ */
+class SolutionTranscript internal constructor(val solution: Solution, val settings: Settings) {
+    internal class Step(
+        val runnerID: Int,
+        val executable: Executable,
+        val randomIndex: Int,
+        val solution: Result<Any, ParameterGroup>,
+        val solutionCopy: Result<Any, ParameterGroup>?,
+    ) {
+        val replayable = listOf(solution.returned, solutionCopy?.returned).none {
+            it is Iterator<*> || it is BaseStream<*, *>
+        }
+
+        // Copies the values a run can modify, so that each copy of a step is independent of the others
+        fun copy(cloner: Cloner) = Step(
+            runnerID,
+            executable,
+            randomIndex,
+            solution.copy(cloner),
+            solutionCopy?.copy(cloner),
+        )
+
+        private fun Result<Any, ParameterGroup>.copy(cloner: Cloner) =
+            copy(parameters = cloner.deepClone(parameters), returned = returned?.let { cloner.deepClone(it) })
+    }
+
+    internal val steps = mutableMapOf<Int, Step>()
+
+    @Volatile
+    var recorded = false
+        internal set
+
+    val size: Int
+        get() = steps.size
+}
+
+class TranscriptSession internal constructor(
+    private val transcript: SolutionTranscript,
+    private val recording: Boolean,
+    private val testingEventListener: TestingEventListener,
+    private val cloner: Cloner,
+) {
+    var diverged = false
+        private set
+
+    internal fun replay(
+        runnerID: Int,
+        stepCount: Int,
+        executable: Executable,
+        randomIndex: Int,
+    ): SolutionTranscript.Step? {
+        if (recording || diverged) {
+            return null
+        }
+        val step = transcript.steps[stepCount]
+        @Suppress("ComplexCondition")
+        if (step == null ||
+            step.runnerID != runnerID ||
+            step.executable != executable ||
+            step.randomIndex != randomIndex
+        ) {
+            diverge(stepCount)
+            return null
+        }
+        if (!step.replayable) {
+            return null
+        }
+        // Replayed results are shared by every submission tested against the transcript, so each gets its own copy
+        return step.copy(cloner)
+    }
+
+    @Suppress("LongParameterList")
+    internal fun record(
+        runnerID: Int,
+        stepCount: Int,
+        executable: Executable,
+        randomIndex: Int,
+        solution: Result<Any, ParameterGroup>,
+        solutionCopy: Result<Any, ParameterGroup>?,
+    ) {
+        if (recording) {
+            // Recorded results are copied so that later changes to the recording run's results do not reach them
+            transcript.steps[stepCount] = SolutionTranscript.Step(
+                runnerID,
+                executable,
+                randomIndex,
+                solution,
+                solutionCopy,
+            ).let { if (it.replayable) it.copy(cloner) else it }
+        }
+    }
+
+    internal fun diverge(stepCount: Int) {
+        if (!recording && !diverged) {
+            diverged = true
+            testingEventListener(TranscriptDiverged(stepCount))
+        }
+    }
+}
+
+internal fun Settings.transcriptKey() = copy(testing = false, recordTrace = false)
@@ -0,0 +1,248 @@
+package edu.illinois.cs.cs125.jenisol.core.generators
+
+import com.rits.cloning.Cloner
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.LinkedList
+import java.util.concurrent.ConcurrentHashMap
+
+/*
+ * Copies generated values for the solution, the submission, and their execution copies. Values with a copy strategy
+ * for their class are copied directly: immutable values are shared, arrays are cloned, and the JDK collections that
+ * generators produce are cloned and their elements copied in place, which preserves their iteration order. Any other
+ * value, including one that contains a value without a strategy, is deep cloned by Cloner as before. Aliasing within
+ * a value is preserved either way.
+ */
+open class CopyEngine : Cloner() {
+    fun interface Strategy {
+        // Returns Copies.UNSUPPORTED if the value cannot be copied without Cloner
+        fun copy(value: Any, copies: Copies): Any?
+    }
+
+    // The state of one deep copy, which records copied containers only once one has mutable contents
+    class Copies internal constructor(private val engine: CopyEngine) {
+        private var seen: IdentityHashMap<Any, Any>? = null
+
+        internal fun copy(value: Any?): Any? {
+            if (value == null || engine.immutable(value)) {
+                return value
+            }
+            seen?.get(value)?.also {
+                return it
+            }
+            val strategy = engine.strategies[value.javaClass]
+            return when {
+                strategy != null -> strategy.copy(value, this)
+                value is kotlin.Array<*> -> copyArray(value)
+                else -> UNSUPPORTED
+            }
+        }
+
+        private fun copyArray(value: kotlin.Array<*>): Any? {
+            @Suppress("UNCHECKED_CAST")
+            val copy = value.clone() as kotlin.Array<Any?>
+            for (i in copy.indices) {
+                val element = copy(value, copy, copy[i])
+                if (element === UNSUPPORTED) {
+                    return UNSUPPORTED
+                }
+                copy[i] = element
+            }
+            return copy
+        }
+
+        // Copies an element of a container that has already been copied, so that aliased elements stay aliased
+        fun copy(container: Any, containerCopy: Any, element: Any?): Any? {
+            if (element == null || engine.immutable(element)) {
+                return element
+            }
+            val seen = seen ?: IdentityHashMap<Any, Any>().also { seen = it }
+            seen.putIfAbsent(container, containerCopy)
+            return copy(element).also {
+                if (it !== UNSUPPORTED) {
+                    seen[element] = it
+                }
+            }
+        }
+
+        companion object {
+            val UNSUPPORTED = Any()
+        }
+    }
+
+    private val immutableClasses = setOf<Class<*>>(
+        String::class.java,
+        java.lang.Boolean::class.java,
+        java.lang.Byte::class.java,
+        java.lang.Short::class.java,
+        java.lang.Integer::class.java,
+        java.lang.Long::class.java,
+        java.lang.Float::class.java,
+        java.lang.Double::class.java,
+        java.lang.Character::class.java,
+        BigInteger::class.java,
+        BigDecimal::class.java,
+        Unit::class.java,
+        Class::class.java,
+    )
+
+    private val strategies = ConcurrentHashMap<Class<*>, Strategy>()
+
+    private fun immutable(value: Any) = value.javaClass.let { it in immutableClasses || it.isEnum } || value is Enum<*>
+
+    fun register(klass: Class<*>, strategy: Strategy) {
+        strategies[klass] = strategy
+    }
+
+    init {
+        register(BooleanArray::class.java) { value, _ -> (value as BooleanArray).clone() }
+        register(ByteArray::class.java) { value, _ -> (value as ByteArray).clone() }
+        register(ShortArray::class.java) { value, _ -> (value as ShortArray).clone() }
+        register(IntArray::class.java) { value, _ -> (value as IntArray).clone() }
+        register(LongArray::class.java) { value, _ -> (value as LongArray).clone() }
+        register(FloatArray::class.java) { value, _ -> (value as FloatArray).clone() }
+        register(DoubleArray::class.java) { value, _ -> (value as DoubleArray).clone() }
+        register(CharArray::class.java) { value, _ -> (value as CharArray).clone() }
+
+        val copyList = Strategy { value, copies ->
+            @Suppress("UNCHECKED_CAST")
+            val copy = when (value) {
+                is ArrayList<*> -> value.clone()
+                else -> (value as LinkedList<*>).clone()
+            } as MutableList<Any?>
+            val iterator = copy.listIterator()
+            while (iterator.hasNext()) {
+                val element = iterator.next()
+                val elementCopy = copies.copy(value, copy, element)
+                if (elementCopy === Copies.UNSUPPORTED) {
+                    return@Strategy Copies.UNSUPPORTED
+                }
+                if (elementCopy !== element) {
+                    iterator.set(elementCopy)
+                }
+            }
+            copy
+        }
+        register(ArrayList::class.java, copyList)
+        register(LinkedList::class.java, copyList)
+
+        // Set elements and map keys cannot be replaced without rehashing, so only immutable ones are supported
+        val copySet = Strategy { value, copies ->
+            val copy = when (value) {
+                is LinkedHashSet<*> -> value.clone()
+                else -> (value as HashSet<*>).let { set ->
+                    orderedClone(set, set.clone() as HashSet<*>, { it }) { capacity ->
+                        HashSet<Any?>(capacity).also { it.addAll(set) }
+                    }
+                }
+            }
+            if ((value as Set<*>).all { it == null || copies.copy(value, copy, it) === it }) {
+                copy
+            } else {
+                Copies.UNSUPPORTED
+            }
+        }
+        register(HashSet::class.java, copySet)
+        register(LinkedHashSet::class.java, copySet)
+
+        val copyMap = Strategy { value, copies ->
+            @Suppress("UNCHECKED_CAST")
+            val copy = when (value) {
+                is LinkedHashMap<*, *> -> value.clone()
+                else -> (value as HashMap<*, *>).let { map ->
+                    orderedClone(map, map.clone() as HashMap<*, *>, { it.keys }) { capacity ->
+                        // putAll would size the table for the contents
+                        HashMap<Any?, Any?>(capacity).also { filled ->
+                            map.forEach { (key, mapped) -> filled[key] = mapped }
+                        }
+                    }
+                }
+            } as MutableMap<Any?, Any?>
+            for (entry in copy.entries) {
+                if (entry.key != null && copies.copy(value, copy, entry.key) !== entry.key) {
+                    return@Strategy Copies.UNSUPPORTED
+                }
+                val valueCopy = copies.copy(value, copy, entry.value)
+                if (valueCopy === Copies.UNSUPPORTED) {
+                    return@Strategy Copies.UNSUPPORTED
+                }
+                if (valueCopy !== entry.value) {
+                    entry.setValue(valueCopy)
+                }
+            }
+            copy
+        }
+        register(HashMap::class.java, copyMap)
+        register(LinkedHashMap::class.java, copyMap)
+
+        // Empty collections cannot be modified, so are shared
+        listOf(
+            listOf<Any>(),
+            setOf<Any>(),
+            mapOf<Any, Any>(),
+            Collections.emptyList<Any>(),
+            Collections.emptySet<Any>(),
+            Collections.emptyMap<Any, Any>(),
+        ).forEach { empty ->
+            register(empty.javaClass) { value, _ -> value }
+        }
+
+        // Generated filesystems are never modified, so are shared rather than copying their contents
+        register(JenisolFileSystem::class.java) { value, _ -> value }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    override fun <T : Any?> deepClone(o: T): T {
+        if (o == null) {
+            return o
+        }
+        val copy = Copies(this).copy(o)
+        return if (copy === Copies.UNSUPPORTED) {
+            super.deepClone(o)
+        } else {
+            copy as T
+        }
+    }
+
+    companion object {
+        // Tables are searched up to this multiple of their contents, beyond which the original was presized
+        private const val MAX_CAPACITY_RATIO = 64
+
+        private val shared = CopyEngine()
+
+        private fun Collection<*>.sameOrder(other: Collection<*>) = size == other.size &&
+            other.iterator().let { iterator -> all { it === iterator.next() } }
+
+        /*
+         * Clones of hash collections are sized for their contents, which gives a different iteration order from the
+         * original when its table is larger. Filling copies of increasing capacity in the original's order reaches one
+         * with the original's capacity, which reproduces its order.
+         */
+        private inline fun <T : Any> orderedClone(
+            original: T,
+            clone: T,
+            keys: (T) -> Collection<*>,
+            filled: (Int) -> T,
+        ): T {
+            if (keys(clone).sameOrder(keys(original))) {
+                return clone
+            }
+            val maxCapacity = keys(original).size.coerceIn(1, Int.MAX_VALUE / MAX_CAPACITY_RATIO) * MAX_CAPACITY_RATIO
+            var capacity = 1
+            while (capacity in 1..maxCapacity) {
+                filled(capacity).also {
+                    if (keys(it).sameOrder(keys(original))) {
+                        return it
+                    }
+                }
+                capacity *= 2
+            }
+            return clone
+        }
+
+        @JvmStatic
+        fun shared() = shared
+    }
+}
@@ -0,0 +1,256 @@
+package edu.illinois.cs.cs125.jenisol.core.generators
+
+import java.lang.reflect.GenericArrayType
+import java.lang.reflect.ParameterizedType
+import java.lang.reflect.Type
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/*
+ * A 128-bit fingerprint of the contents of parameters built from null, immutable values, arrays, and JDK lists, sets,
+ * and maps. Taking one before and after a call shows whether the call modified its parameters without comparing them
+ * against a separate copy. Sets and maps are fingerprinted without regard to their iteration order, since they are
+ * compared that way. Values that contain anything else cannot be fingerprinted.
+ */
+internal class Fingerprint private constructor(private val high: Long, private val low: Long) {
+    override fun equals(other: Any?) = other is Fingerprint && high == other.high && low == other.low
+
+    override fun hashCode() = (high xor low).toInt()
+
+    override fun toString() = "Fingerprint(%016x%016x)".format(high, low)
+
+    private class Hasher {
+        private var high = HIGH_SEED
+        private var low = LOW_SEED
+
+        fun add(value: Long) {
+            high = java.lang.Long.rotateLeft((high xor value) * HIGH_MULTIPLIER, HIGH_ROTATION)
+            low = java.lang.Long.rotateLeft((low + value) * LOW_MULTIPLIER, LOW_ROTATION) xor value
+        }
+
+        fun add(value: Int) = add(value.toLong())
+
+        fun add(tag: Tag, value: Long) {
+            add(tag.ordinal)
+            add(value)
+        }
+
+        fun finish() = Fingerprint(mix(high), mix(low))
+
+        @Suppress("ComplexMethod", "LongMethod", "ReturnCount")
+        fun add(value: Any?, depth: Int): Boolean {
+            if (depth > MAX_DEPTH) {
+                return false
+            }
+            when (value) {
+                null -> add(Tag.NULL.ordinal)
+                is String -> {
+                    add(Tag.STRING.ordinal)
+                    add(value.length)
+                    for (c in value) {
+                        add(c.code)
+                    }
+                }
+
+                is Boolean -> add(if (value) Tag.TRUE.ordinal else Tag.FALSE.ordinal)
+                is Byte -> add(Tag.BYTE, value.toLong())
+                is Short -> add(Tag.SHORT, value.toLong())
+                is Int -> add(Tag.INT, value.toLong())
+                is Long -> add(Tag.LONG, value)
+                is Char -> add(Tag.CHAR, value.code.toLong())
+                is Float -> add(Tag.FLOAT, value.toRawBits().toLong())
+                is Double -> add(Tag.DOUBLE, value.toRawBits())
+                is BigInteger, is BigDecimal -> {
+                    add(Tag.NUMBER.ordinal)
+                    add(value.toString(), depth + 1)
+                }
+
+                is Enum<*> -> {
+                    add(Tag.ENUM.ordinal)
+                    add(value.declaringJavaClass.name, depth + 1)
+                    add(value.ordinal)
+                }
+
+                is BooleanArray -> {
+                    add(Tag.BOOLEAN_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(if (it) 1 else 0) }
+                }
+
+                is ByteArray -> {
+                    add(Tag.BYTE_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it.toLong()) }
+                }
+
+                is ShortArray -> {
+                    add(Tag.SHORT_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it.toLong()) }
+                }
+
+                is IntArray -> {
+                    add(Tag.INT_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it) }
+                }
+
+                is LongArray -> {
+                    add(Tag.LONG_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it) }
+                }
+
+                is FloatArray -> {
+                    add(Tag.FLOAT_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it.toRawBits()) }
+                }
+
+                is DoubleArray -> {
+                    add(Tag.DOUBLE_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it.toRawBits()) }
+                }
+
+                is CharArray -> {
+                    add(Tag.CHAR_ARRAY.ordinal)
+                    add(value.size)
+                    value.forEach { add(it.code) }
+                }
+
+                is Array<*> -> {
+                    add(Tag.ARRAY.ordinal)
+                    add(value.size)
+                    for (element in value) {
+                        if (!add(element, depth + 1)) {
+                            return false
+                        }
+                    }
+                }
+
+                is List<*> -> {
+                    if (!value.javaClass.standard()) {
+                        return false
+                    }
+                    add(Tag.LIST.ordinal)
+                    add(value.size)
+                    for (element in value) {
+                        if (!add(element, depth + 1)) {
+                            return false
+                        }
+                    }
+                }
+
+                is Set<*> -> {
+                    if (!value.javaClass.standard()) {
+                        return false
+                    }
+                    add(Tag.SET.ordinal)
+                    return addUnordered(value) { hasher, element -> hasher.add(element, depth + 1) }
+                }
+
+                is Map<*, *> -> {
+                    if (!value.javaClass.standard()) {
+                        return false
+                    }
+                    add(Tag.MAP.ordinal)
+                    return addUnordered(value.entries) { hasher, entry ->
+                        hasher.add(entry.key, depth + 1) && hasher.add(entry.value, depth + 1)
+                    }
+                }
+
+                else -> return false
+            }
+            return true
+        }
+
+        // Combines the fingerprints of the elements by addition, which does not depend on their order
+        private fun <T> addUnordered(elements: Collection<T>, addElement: (Hasher, T) -> Boolean): Boolean {
+            var high = 0L
+            var low = 0L
+            for (element in elements) {
+                val hasher = Hasher()
+                if (!addElement(hasher, element)) {
+                    return false
+                }
+                hasher.finish().also {
+                    high += it.high
+                    low += it.low
+                }
+            }
+            add(elements.size)
+            add(high)
+            add(low)
+            return true
+        }
+    }
+
+    private enum class Tag {
+        NULL, STRING, TRUE, FALSE, BYTE, SHORT, INT, LONG, CHAR, FLOAT, DOUBLE, NUMBER, ENUM,
+        BOOLEAN_ARRAY, BYTE_ARRAY, SHORT_ARRAY, INT_ARRAY, LONG_ARRAY, FLOAT_ARRAY, DOUBLE_ARRAY, CHAR_ARRAY, ARRAY,
+        LIST, SET, MAP,
+    }
+
+    companion object {
+        // Deeper values are not produced by generators, and are likely to contain a cycle
+        private const val MAX_DEPTH = 256
+
+        private const val HIGH_SEED = 0x243F6A8885A308D3L
+        private const val LOW_SEED = 0x13198A2E03707344L
+        private const val HIGH_MULTIPLIER = -0x61c8864680b583ebL
+        private const val LOW_MULTIPLIER = -0x3d4d51c2d82b14b1L
+        private const val HIGH_ROTATION = 31
+        private const val LOW_ROTATION = 27
+
+        @Suppress("MagicNumber")
+        private fun mix(value: Long): Long {
+            var mixed = value xor (value ushr 33)
+            mixed *= -0xae502812aa7333L
+            mixed = mixed xor (mixed ushr 33)
+            mixed *= -0x3b314601e57a13adL
+            return mixed xor (mixed ushr 33)
+        }
+
+        private fun Class<*>.standard() = name.startsWith("java.util.") || name.startsWith("kotlin.collections.")
+
+        // Returns null if the parameters contain a value that cannot be fingerprinted
+        fun of(parameters: Array<Any?>): Fingerprint? = Hasher().let { hasher ->
+            if (hasher.add(parameters, 0)) {
+                hasher.finish()
+            } else {
+                null
+            }
+        }
+
+        private val valueClasses = setOf<Class<*>>(
+            String::class.java,
+            java.lang.Boolean::class.java,
+            java.lang.Byte::class.java,
+            java.lang.Short::class.java,
+            java.lang.Integer::class.java,
+            java.lang.Long::class.java,
+            java.lang.Float::class.java,
+            java.lang.Double::class.java,
+            java.lang.Character::class.java,
+            BigInteger::class.java,
+            BigDecimal::class.java,
+        )
+
+        private val containerClasses = setOf<Class<*>>(
+            List::class.java,
+            Set::class.java,
+            Map::class.java,
+        )
+
+        // Whether every value of a parameter type can be fingerprinted, which means that it cannot hold a receiver
+        fun covers(type: Type): Boolean = when (type) {
+            is Class<*> -> type.isPrimitive || type.isEnum || type in valueClasses ||
+                (type.isArray && covers(type.componentType))
+
+            is GenericArrayType -> covers(type.genericComponentType)
+            is ParameterizedType -> type.rawType in containerClasses && type.actualTypeArguments.all { covers(it) }
+            else -> false
+        }
+    }
+}
@@ -32,20 +32,44 @@ import java.lang.reflect.Executable
 import java.lang.reflect.Field
 import java.lang.reflect.Method
 import java.lang.reflect.Parameter
+import java.lang.reflect.ParameterizedType
 import java.lang.reflect.Type
+import java.util.concurrent.Future
 import kotlin.random.Random
 
-data class Parameters(
-    val solution: Array<Any?>,
-    val submission: Array<Any?>,
-    val solutionCopy: Array<Any?>,
-    val submissionCopy: Array<Any?>,
-    val unmodifiedCopy: Array<Any?>,
+class Parameters internal constructor(
+    private val copies: LazyCopies<Array<Any?>>,
     val type: Type,
     val complexity: Complexity = ZeroComplexity,
 ) {
+    constructor(
+        solution: Array<Any?>,
+        submission: Array<Any?>,
+        solutionCopy: Array<Any?>,
+        submissionCopy: Array<Any?>,
+        unmodifiedCopy: Array<Any?>,
+        type: Type,
+        complexity: Complexity = ZeroComplexity,
+    ) : this(LazyCopies(listOf(solution, submission, solutionCopy, submissionCopy, unmodifiedCopy)), type, complexity)
+
     enum class Type { EMPTY, SIMPLE, EDGE, MIXED, RANDOM, FIXED_FIELD, RANDOM_METHOD, RECEIVER }
 
+    val solution: Array<Any?>
+        get() = copies[LazyCopies.SOLUTION]
+    val submission: Array<Any?>
+        get() = copies[LazyCopies.SUBMISSION]
+    val solutionCopy: Array<Any?>
+        get() = copies[LazyCopies.SOLUTION_COPY]
+    val submissionCopy: Array<Any?>
+        get() = copies[LazyCopies.SUBMISSION_COPY]
+    val unmodifiedCopy: Array<Any?>
+        get() = copies[LazyCopies.UNMODIFIED_COPY]
+
+    internal fun made(copy: Int) = copies.made(copy)
+
+    // Shares the copies already made
+    fun copy(complexity: Complexity = this.complexity) = Parameters(copies, type, complexity)
+
     @Suppress("ExceptionRaisedInUnexpectedLocation")
     override fun equals(other: Any?) = when {
         this === other -> true
@@ -64,16 +88,18 @@ data class Parameters(
 
     override fun hashCode() = solutionCopy.contentHashCode()
 
+    override fun toString() = "Parameters(solution=${solution.contentDeepToString()}, type=$type)"
+
     companion object {
         fun fromReceivers(value: Value<Any?>) = Parameters(
-            arrayOf(value.solution),
-            arrayOf(value.submission),
-            arrayOf(value.solutionCopy),
-            arrayOf(value.submissionCopy),
-            arrayOf(value.unmodifiedCopy),
+            LazyCopies { copy, _ -> arrayOf(value[copy]) },
             Type.RECEIVER,
             value.complexity,
         )
+
+        // Each copy of the parameters is assembled from the same copy of each value
+        internal fun fromValues(values: List<Value<*>>, type: Type, complexity: Complexity = ZeroComplexity) =
+            Parameters(LazyCopies { copy, _ -> Array(values.size) { values[it][copy] } }, type, complexity)
     }
 }
 
@@ -416,7 +442,7 @@ class GeneratorFactory(private val executables: Set<Executable>, val solution: S
     // Check to make sure we can generate all needed parameters
     init {
         executables.filter { it in typesNeeded }.forEach { executable ->
-            TypeParameterGenerator(executable.parameters, typeGenerators, Random, cloner = Cloner.shared())
+            TypeParameterGenerator(executable.parameters, typeGenerators, Random, cloner = CopyEngine.shared())
         }
         if (solution.usesSystemIn) {
             require(SystemIn::class.java in typeGenerators) {
@@ -432,11 +458,37 @@ class GeneratorFactory(private val executables: Set<Executable>, val solution: S
         }
     }
 
+    /*
+     * Executables whose generated parameters can be copied from one submission to another: parameter types that do
+     * not involve receivers, Object, type variables, or type generation annotations, and any @RandomParameters method
+     * static and fast copied.
+     */
+    val shareableExecutables = methodParameterGenerators
+        .filter { (executable, generator) ->
+            executable.parameters.isNotEmpty() &&
+                generator.shareable &&
+                executable.genericParameterTypes.all { it.shareable() }
+        }.keys
+
+    // Shareable executables without a @RandomParameters method, which are the only ones generated on another thread
+    val pipelineableExecutables = shareableExecutables
+        .filter { executable -> methodParameterGenerators[executable]?.randomParameters == null }
+        .toSet()
+
+    private fun Type.shareable(): Boolean = when {
+        this in typeGenerators || this == solutionClass || this == Any::class.java -> false
+        this is Class<*> -> !isArray || componentType.shareable()
+        this is ParameterizedType -> actualTypeArguments.all { it.shareable() }
+        else -> false
+    }
+
     fun get(
         random: Random,
         cloner: Cloner,
         typeGeneratorOverrides: Map<Type, TypeGeneratorGenerator>? = null,
         forExecutables: Set<Executable> = executables,
+        shared: SharedParameters? = null,
+        pipeline: GenerationPipeline? = null,
     ): Generators {
         val typeGeneratorsWithOverrides = typeGenerators.toMutableMap().also {
             it.putAll(typeGeneratorOverrides ?: mapOf())
@@ -448,11 +500,14 @@ class GeneratorFactory(private val executables: Set<Executable>, val solution: S
                 val parameterGenerator = { random: Random, cloner: Cloner ->
                     TypeParameterGenerator(executable.parameters, typeGeneratorsWithOverrides, random, cloner)
                 }
+                val pipelined = pipeline?.takeIf { executable in pipelineableExecutables }
                 executable to (
                     methodParameterGenerators[executable]?.generate(
                         parameterGenerator,
-                        random,
+                        pipelined?.random(executable) ?: random,
                         cloner,
+                        shared?.get(executable),
+                        pipelined,
                     ) ?: error("Didn't find a method parameter generator that should exist: $executable")
                     )
             }
@@ -534,7 +589,7 @@ class MethodParametersGeneratorGenerator(val target: Executable, val solution: C
         |Target the constructor with @${FixedParameters.name} if you need to create receivers."""
                             .trimMargin().trim()
                     }
-                    val cloner = Cloner.shared()
+                    val cloner = CopyEngine.shared()
                     val solutionParameters = group.deepCopy(cloner)
                     val submissionParameters = group.deepCopy(cloner)
                     check(solutionParameters !== submissionParameters) {
@@ -582,58 +637,79 @@ class MethodParametersGeneratorGenerator(val target: Executable, val solution: C
     }
 
     val needsParameterGenerator = fixedParameters == null || randomParameters == null
-    fun generate(parametersGenerator: ParametersGeneratorGenerator?, random: Random, cloner: Cloner) =
-        ConfiguredParametersGenerator(
-            parametersGenerator,
-            random,
-            cloner,
-            fixedParameters,
-            randomParameters,
-            notNullParameters,
-        )
+    val shareable = randomParameters == null ||
+        (randomParameters.isStatic() && randomParameters.getAnnotation(RandomParameters::class.java).fastCopy)
+
+    fun generate(
+        parametersGenerator: ParametersGeneratorGenerator?,
+        random: Random,
+        cloner: Cloner,
+        shared: SharedExecutableParameters? = null,
+        pipeline: GenerationPipeline? = null,
+    ) = ConfiguredParametersGenerator(
+        parametersGenerator,
+        random,
+        cloner,
+        fixedParameters,
+        randomParameters,
+        notNullParameters,
+        shared,
+        pipeline,
+    )
 }
 
 @Suppress("LongParameterList")
 class ConfiguredParametersGenerator(
     parametersGenerator: ParametersGeneratorGenerator?,
-    random: Random,
+    private val random: Random,
     private val cloner: Cloner,
-    overrideFixed: Collection<ParameterGroup>?,
+    private val overrideFixed: Collection<ParameterGroup>?,
     private val overrideRandom: Method?,
     private val notNullParameters: List<Boolean>,
+    private val shared: SharedExecutableParameters? = null,
+    private val pipeline: GenerationPipeline? = null,
 ) : ExecutableGenerator {
 
-    private val generator = if (overrideFixed != null && overrideRandom != null) {
-        null
-    } else {
-        check(parametersGenerator != null) { "Parameter generator required but not provided" }
-        parametersGenerator(random, cloner)
+    // Created on first use, since parameters shared from earlier submissions do not need it
+    private val generator: TypeParameterGenerator? by lazy {
+        if (overrideFixed != null && overrideRandom != null) {
+            null
+        } else {
+            check(parametersGenerator != null) { "Parameter generator required but not provided" }
+            parametersGenerator(random, cloner)
+        }
     }
 
     private fun Collection<ParameterGroup>.toFixedParameters(): List<Parameters> = map {
+        val pristine = it.deepCopy(cloner)
         Parameters(
-            it.deepCopy(cloner).toArray(),
-            it.deepCopy(cloner).toArray(),
-            it.deepCopy(cloner).toArray(),
-            it.deepCopy(cloner).toArray(),
-            it.deepCopy(cloner).toArray(),
+            LazyCopies { _, last ->
+                if (last) {
+                    pristine.toArray()
+                } else {
+                    pristine.deepCopy(cloner).toArray()
+                }
+            },
             Parameters.Type.FIXED_FIELD,
         )
     }
 
     override val fixed: List<Parameters> by lazy {
-        if (overrideFixed != null) {
-            overrideFixed.toFixedParameters().also { parameters ->
-                check(parameters.none { it.filterNotNullParameters() }) {
-                    "@FixedParameters list contains null values for parameters marked as @NotNull"
-                }
+        shared?.share(ZeroComplexity, random, cloner) { generateFixed() } ?: generateFixed()
+    }
+
+    private fun generateFixed() = if (overrideFixed != null) {
+        overrideFixed.toFixedParameters().also { parameters ->
+            check(parameters.none { it.filterNotNullParameters() }) {
+                "@FixedParameters list contains null values for parameters marked as @NotNull"
             }
-        } else {
-            check(generator != null) { "Automatic parameter generator was unexpectedly null" }
-            generator
-                .let { it.simple + it.edge + it.mixed }
-                .filter { !it.filterNotNullParameters() }
         }
+    } else {
+        val generator = generator
+        check(generator != null) { "Automatic parameter generator was unexpectedly null" }
+        generator
+            .let { it.simple + it.edge + it.mixed }
+            .filter { !it.filterNotNullParameters() }
     }
 
     private fun Parameters.filterNotNullParameters() = solution.filterIndexed { index, any ->
@@ -653,7 +729,7 @@ class ConfiguredParametersGenerator(
     }
 
     @Suppress("TooGenericExceptionCaught")
-    private fun getRandom(random: java.util.Random, runner: TestRunner) = try {
+    private fun getRandom(random: java.util.Random, complexity: Complexity, runner: TestRunner) = try {
         unwrap {
             when (overrideRandom!!.parameters.size) {
                 1 -> overrideRandom.invoke(runner.receivers?.solution, random)
@@ -675,7 +751,8 @@ class ConfiguredParametersGenerator(
 
     @Suppress("LongMethod")
     override fun random(complexity: Complexity, runner: TestRunner): Parameters = if (overrideRandom != null) {
-        val solutionParameters = getRandom(randomGroup.record, runner)
+        val solutionParameters = getRandom(randomGroup.record, complexity, runner)
+        fun replay() = getRandom(randomGroup.replay, complexity, runner)
         check(solutionParameters.size == notNullParameters.size)
         check(
             solutionParameters.toList()
@@ -688,7 +765,7 @@ class ConfiguredParametersGenerator(
         }
         @Suppress("TooGenericExceptionCaught")
         val submissionParameters = try {
-            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { getRandom(randomGroup.replay, runner) }
+            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { replay() }
         } catch (e: Throwable) {
             if (!randomFastCopy) {
                 throw e
@@ -697,11 +774,11 @@ class ConfiguredParametersGenerator(
         }
 
         val solutionCopyParameters =
-            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { getRandom(randomGroup.replay, runner) }
+            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { replay() }
         val submissionCopyParameters =
-            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { getRandom(randomGroup.replay, runner) }
+            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { replay() }
         val unmodifiedParameters =
-            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { getRandom(randomGroup.replay, runner) }
+            cloneOrCopy(solutionParameters, cloner, randomFastCopy) { replay() }
 
         randomGroup.check()
 
@@ -726,6 +803,7 @@ class ConfiguredParametersGenerator(
             complexity,
         )
     } else {
+        val generator = generator
         check(generator != null) { "Automatic parameter generator was unexpectedly null" }
         generator.random(complexity, runner).also {
             check(it.solution.size == notNullParameters.size)
@@ -744,11 +822,48 @@ class ConfiguredParametersGenerator(
     override fun generate(runner: TestRunner): Parameters = if (index in fixed.indices) {
         fixed[index]
     } else {
-        random(bound ?: complexity, runner).also { randomStarted = true }
+        (bound ?: complexity).let { complexity ->
+            if (pipeline != null) {
+                pipelinedRandom(pipeline, complexity, runner)
+            } else {
+                shared?.share(complexity, random, cloner) { listOf(random(complexity, runner)) }?.single()
+                    ?: random(complexity, runner)
+            }
+        }.also { randomStarted = true }
     }.also {
         index++
     }
 
+    private var speculation: Pair<Int, Future<Parameters>>? = null
+
+    init {
+        // Start on the fixed parameters, which are the first needed
+        pipeline?.submit { fixed }
+    }
+
+    /*
+     * Uses the parameters generated ahead at the predicted complexity if it matches, and otherwise generates at the
+     * requested complexity. Either way the next parameters are started at the complexity that follows a passing step.
+     * A missed prediction still consumes its random draws, but since the requests made depend only on earlier results
+     * the draws consumed do too.
+     */
+    private fun pipelinedRandom(pipeline: GenerationPipeline, complexity: Complexity, runner: TestRunner): Parameters {
+        val level = complexity.level
+        val pending = speculation
+        val parameters = if (pending?.first == level) {
+            pending.second
+        } else {
+            pipeline.submit { random(Complexity(level), runner) }
+        }.let { pipeline.await(it) }
+        val predicted = if (canShrink && bound == null) {
+            Complexity(level).next().level
+        } else {
+            level
+        }
+        speculation = predicted to pipeline.submit { random(Complexity(predicted), runner) }
+        return parameters.copy(complexity = complexity)
+    }
+
     override fun next() {
         if (randomStarted && canShrink) {
             complexity.next()
@@ -800,17 +915,8 @@ class TypeParameterGenerator(
     private fun List<Set<Value<*>>>.combine(type: Parameters.Type) = product().shuffled(random).map { list ->
         list.map {
             check(it is Value<*>) { "Didn't find the right type in our parameter list" }
-            ParameterValues(it.solution, it.submission, it.solutionCopy, it.submissionCopy, it.unmodifiedCopy)
-        }.unzip().let { (solution, submission, solutionCopy, submissionCopy, unmodifiedCopy) ->
-            Parameters(
-                solution.toTypedArray(),
-                submission.toTypedArray(),
-                solutionCopy.toTypedArray(),
-                submissionCopy.toTypedArray(),
-                unmodifiedCopy.toTypedArray(),
-                type,
-            )
-        }
+            it
+        }.let { Parameters.fromValues(it, type) }
     }
 
     val simple by lazy {
@@ -827,19 +933,7 @@ class TypeParameterGenerator(
 
     fun random(complexity: Complexity, runner: TestRunner?): Parameters = parameterGenerators.map {
         it.random(complexity, runner)
-    }.map {
-        ParameterValues(it.solution, it.submission, it.solutionCopy, it.submissionCopy, it.unmodifiedCopy)
-    }.unzip().let { (solution, submission, solutionCopy, submissionCopy, unmodifiedCopy) ->
-        Parameters(
-            solution.toTypedArray(),
-            submission.toTypedArray(),
-            solutionCopy.toTypedArray(),
-            submissionCopy.toTypedArray(),
-            unmodifiedCopy.toTypedArray(),
-            Parameters.Type.RANDOM,
-            complexity,
-        )
-    }
+    }.let { Parameters.fromValues(it, Parameters.Type.RANDOM, complexity) }
 }
 
 fun List<*>.product() = fold(listOf(listOf<Any?>())) { acc, set ->
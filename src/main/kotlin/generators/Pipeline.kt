@@ -0,0 +1,64 @@
+package edu.illinois.cs.cs125.jenisol.core.generators
+
+import edu.illinois.cs.cs125.jenisol.core.TestingCancelled
+import java.lang.reflect.Executable
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/*
+ * Generates parameters on a helper thread ahead of when they are needed. Each pipelined executable draws from its own
+ * random stream split from the test seed, and all generation for an executable runs in submission order on the one
+ * helper thread, so generated parameters do not depend on timing and runs remain reproducible. Generation no longer
+ * draws from the main random stream, which is why pipelined runs differ from unpipelined runs with the same seed.
+ * Only executables whose parameters come entirely from built-in generators are pipelined, since @RandomParameters
+ * methods run user code that is not required to be thread-safe.
+ */
+class GenerationPipeline internal constructor(
+    private val seed: Long,
+    private val generatorVersion: Int = GeneratorRandom.FIRST_VERSION,
+) : AutoCloseable {
+    // The helper thread exits when idle so that an unclosed pipeline does not leak it
+    private val executor = ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, LinkedBlockingQueue()) { task ->
+        Thread(task, "jenisol-generation").apply {
+            isDaemon = true
+        }
+    }
+
+    // Keyed on the signature rather than the identity hash so that the split is stable across runs
+    internal fun random(executable: Executable): Random =
+        SplitRandom(splitMix(seed + splitMix(executable.toGenericString().hashCode().toLong())), generatorVersion)
+
+    internal fun <T> submit(task: () -> T): Future<T> = executor.submit(Callable(task))
+
+    internal fun <T> await(future: Future<T>): T = try {
+        future.get()
+    } catch (e: ExecutionException) {
+        throw e.cause ?: e
+    } catch (_: InterruptedException) {
+        Thread.currentThread().interrupt()
+        throw TestingCancelled()
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
+
+private class SplitRandom(seed: Long, generatorVersion: Int) : GeneratorRandom(generatorVersion) {
+    private val random = Random(seed)
+
+    override fun nextBits(bitCount: Int) = random.nextBits(bitCount)
+}
+
+@Suppress("MagicNumber")
+private fun splitMix(value: Long): Long {
+    var z = value + 0x9E3779B97F4A7C15UL.toLong()
+    z = (z xor (z ushr 30)) * 0xBF58476D1CE4E5B9UL.toLong()
+    z = (z xor (z ushr 27)) * 0x94D049BB133111EBUL.toLong()
+    return z xor (z ushr 31)
+}
@@ -2,6 +2,7 @@
 
 package edu.illinois.cs.cs125.jenisol.core.generators
 
+import com.rits.cloning.Cloner
 import edu.illinois.cs.cs125.jenisol.core.Submission
 import edu.illinois.cs.cs125.jenisol.core.TestRunner
 import kotlin.random.Random
@@ -21,6 +22,7 @@ class ReceiverGenerator(
     val random: Random = Random,
     val receivers: MutableList<Value<Any>>,
     val submission: Submission,
+    private val cloner: Cloner = CopyEngine.shared(),
 ) : TypeGenerator<Any> {
 
     override val simple: Set<Value<Any>>
@@ -36,6 +38,10 @@ class ReceiverGenerator(
     } else {
         receivers.findWithComplexity(complexity, random)
     }
+
+    // Receivers belong to their runners, so values built from them get a clone
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any =
+        cloner.deepClone(random(complexity, runner).solutionCopy)
 }
 
 val UnconfiguredReceiverGenerator = object : TypeGenerator<Any> {
@@ -0,0 +1,82 @@
+package edu.illinois.cs.cs125.jenisol.core.generators
+
+import com.rits.cloning.Cloner
+import edu.illinois.cs.cs125.jenisol.core.Solution
+import edu.illinois.cs.cs125.jenisol.core.Submission
+import java.lang.reflect.Executable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+
+/*
+ * Parameters generated while testing submissions to one solution with one seed. Generation is determined by the
+ * position in the random stream and the state of the executable's generator, so a submission that reaches the same
+ * position in the same state receives a copy of parameters generated for an earlier submission, and the random draws
+ * made to generate them are replayed to keep its random stream in sync.
+ */
+class SharedParameters(
+    val solution: Solution,
+    val seed: Int,
+    val generatorVersion: Int = GeneratorRandom.FIRST_VERSION,
+) {
+    private val executables = solution.generatorFactory.shareableExecutables.associateWith {
+        SharedExecutableParameters(this)
+    }
+
+    private val hitCount = AtomicInteger()
+    private val missCount = AtomicInteger()
+
+    val hits: Int
+        get() = hitCount.get()
+    val misses: Int
+        get() = missCount.get()
+
+    internal operator fun get(executable: Executable) = executables[executable]
+
+    internal fun hit() = hitCount.incrementAndGet()
+    internal fun miss() = missCount.incrementAndGet()
+}
+
+class SharedExecutableParameters internal constructor(private val shared: SharedParameters) {
+    private class Generated(
+        val draws: IntArray,
+        val types: List<Parameters.Type>,
+        val pristine: List<Array<Any?>>,
+    )
+
+    // Fixed parameters are generated with ZeroComplexity, random parameters at Complexity.MIN or above
+    private val generated = ConcurrentHashMap<List<Int>, Generated>()
+
+    @Suppress("MagicNumber")
+    internal fun share(
+        complexity: Complexity,
+        random: Random,
+        cloner: Cloner,
+        generate: () -> List<Parameters>,
+    ): List<Parameters> {
+        if (random !is Submission.RecordingRandom) {
+            return generate()
+        }
+        val key = listOf(complexity.level, random.currentIndex)
+        generated[key]?.also { previous ->
+            previous.draws.forEach { random.nextBits(it) }
+            shared.hit()
+            return previous.pristine.mapIndexed { i, pristine ->
+                Parameters(LazyCopies { _, _ -> cloner.deepClone(pristine) }, previous.types[i], complexity)
+            }
+        }
+        val draws = mutableListOf<Int>()
+        return random.recordDraws(draws) { generate() }.also { parameters ->
+            shared.miss()
+            generated.putIfAbsent(
+                key,
+                Generated(
+                    draws.toIntArray(),
+                    parameters.map { it.type },
+                    // The solution copy is always made, and is still unmodified before the parameters are used
+                    parameters.map { cloner.deepClone(it.solution) },
+                ),
+            )
+        }
+    }
+}
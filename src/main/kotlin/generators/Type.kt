@@ -8,7 +8,6 @@ import edu.illinois.cs.cs125.jenisol.core.RandomType
 import edu.illinois.cs.cs125.jenisol.core.SimpleType
 import edu.illinois.cs.cs125.jenisol.core.TestRunner
 import edu.illinois.cs.cs125.jenisol.core.cleanTypeName
-import edu.illinois.cs.cs125.jenisol.core.deepCopy
 import edu.illinois.cs.cs125.jenisol.core.unwrap
 import java.lang.IllegalStateException
 import java.lang.reflect.Array
@@ -50,14 +49,98 @@ class Complexity(var level: Int = MIN) {
 
 val ZeroComplexity = Complexity(0)
 
-open class Value<T>(
-    val solution: T,
-    val submission: T,
-    val solutionCopy: T,
-    val submissionCopy: T,
-    val unmodifiedCopy: T,
-    val complexity: Complexity,
-)
+/*
+ * The copies of a generated value used by one step: for the solution, the submission, their execution copies, and an
+ * unmodified copy. Copies are made on first access, so copies a step never reads are never made.
+ */
+internal class LazyCopies<T> private constructor(
+    private val copies: kotlin.Array<Any?>,
+    private var made: Int,
+    private val make: ((copy: Int, last: Boolean) -> T)?,
+) {
+    constructor(copies: List<T>) : this(copies.toTypedArray<Any?>(), ALL, null)
+
+    // last is true when the other copies have all been made
+    constructor(make: (copy: Int, last: Boolean) -> T) : this(arrayOfNulls(COUNT), 0, make)
+
+    init {
+        check(copies.size == COUNT) { "Wrong number of copies" }
+    }
+
+    @Synchronized
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(copy: Int): T {
+        if (made and (1 shl copy) == 0) {
+            copies[copy] = make!!(copy, Integer.bitCount(made) == COUNT - 1)
+            made = made or (1 shl copy)
+        }
+        return copies[copy] as T
+    }
+
+    @Synchronized
+    internal fun made(copy: Int) = made and (1 shl copy) != 0
+
+    companion object {
+        const val SOLUTION = 0
+        const val SUBMISSION = 1
+        const val SOLUTION_COPY = 2
+        const val SUBMISSION_COPY = 3
+        const val UNMODIFIED_COPY = 4
+        const val COUNT = 5
+        private const val ALL = (1 shl COUNT) - 1
+
+        // Copies are cloned from a pristine clone of the source, which becomes the last copy made
+        fun <T> cloning(source: T, cloner: Cloner) = fromPristine(
+            if (source == null) {
+                source
+            } else {
+                cloner.deepClone(source)
+            },
+            cloner,
+        )
+
+        fun <T> fromPristine(pristine: T, cloner: Cloner): LazyCopies<T> {
+            if (pristine == null) {
+                return LazyCopies(List(COUNT) { pristine })
+            }
+            return LazyCopies { _, last ->
+                if (last) {
+                    pristine
+                } else {
+                    cloner.deepClone(pristine)
+                }
+            }
+        }
+    }
+}
+
+open class Value<T> internal constructor(private val copies: LazyCopies<T>, val complexity: Complexity) {
+    constructor(
+        solution: T,
+        submission: T,
+        solutionCopy: T,
+        submissionCopy: T,
+        unmodifiedCopy: T,
+        complexity: Complexity,
+    ) : this(LazyCopies(listOf(solution, submission, solutionCopy, submissionCopy, unmodifiedCopy)), complexity)
+
+    // Copies are cloned from the source when first accessed, so later changes to the source are not seen
+    constructor(source: T, complexity: Complexity, cloner: Cloner) :
+        this(LazyCopies.cloning(source, cloner), complexity)
+
+    val solution: T
+        get() = copies[LazyCopies.SOLUTION]
+    val submission: T
+        get() = copies[LazyCopies.SUBMISSION]
+    val solutionCopy: T
+        get() = copies[LazyCopies.SOLUTION_COPY]
+    val submissionCopy: T
+        get() = copies[LazyCopies.SUBMISSION_COPY]
+    val unmodifiedCopy: T
+        get() = copies[LazyCopies.UNMODIFIED_COPY]
+
+    internal operator fun get(copy: Int) = copies[copy]
+}
 
 fun <T> cloneOrCopy(value: T, cloner: Cloner, fastCopy: Boolean, copier: () -> T): T = if (fastCopy) {
     cloner.deepClone(value)
@@ -69,6 +152,9 @@ interface TypeGenerator<T> {
     val simple: Set<Value<T>>
     val edge: Set<Value<T?>>
     fun random(complexity: Complexity, runner: TestRunner?): Value<T>
+
+    // A single random value not shared with any other, for generators that use it as part of a larger value
+    fun raw(complexity: Complexity, runner: TestRunner?): T = random(complexity, runner).solutionCopy
 }
 
 @Suppress("UNCHECKED_CAST", "LongParameterList")
@@ -271,6 +357,13 @@ class OverrideTypeGenerator(
         }
         return Value(solution, submission, solutionCopy, submissionCopy, unmodifiedCopy, complexity)
     }
+
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any = if (rand == null) {
+        check(default != null) { "Couldn't find rand generator for $name" }
+        default.raw(complexity, runner) as Any
+    } else {
+        random(complexity, runner).solutionCopy
+    }
 }
 
 sealed class TypeGenerators<T>(internal val random: Random, private val cloner: Cloner) : TypeGenerator<T>
@@ -383,13 +476,16 @@ class ListGenerator(random: Random, private val cloner: Cloner, private val comp
 
     override val edge: Set<Value<Any?>> = setOf<Any?>(null).values(ZeroComplexity, cloner)
 
-    override fun random(complexity: Complexity, runner: TestRunner?): Value<Any> {
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any {
         val listSize = random.nextInt((complexity.level * 2).coerceAtLeast(2))
         return mutableListOf<Any>().apply {
             repeat(listSize) {
-                add(componentGenerator.random(complexity, runner).solutionCopy!!)
+                add(componentGenerator.raw(complexity, runner)!!)
             }
-        }.value(complexity, cloner)
+        }
     }
 }
 
@@ -407,13 +503,16 @@ class SetGenerator(random: Random, private val cloner: Cloner, private val compo
 
     override val edge: Set<Value<Any?>> = setOf<Any?>(null).values(ZeroComplexity, cloner)
 
-    override fun random(complexity: Complexity, runner: TestRunner?): Value<Any> {
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any {
         val setSize = random.nextInt(complexity.level * 2).coerceAtLeast(2)
         return mutableSetOf<Any>().apply {
             repeat(setSize) {
-                add(componentGenerator.random(complexity, runner).solutionCopy!!)
+                add(componentGenerator.raw(complexity, runner)!!)
             }
-        }.value(complexity, cloner)
+        }
     }
 }
 
@@ -449,14 +548,16 @@ class MapGenerator(
 
     override val edge: Set<Value<Any?>> = setOf<Any?>(null).values(ZeroComplexity, cloner)
 
-    override fun random(complexity: Complexity, runner: TestRunner?): Value<Any> {
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any {
         val keySize = random.nextInt((complexity.level * 2).coerceAtLeast(2))
         return mutableMapOf<Any, Any>().apply {
             repeat(keySize) {
-                this[keyGenerator.random(complexity, runner).solutionCopy!!] =
-                    valueGenerator.random(complexity, runner).solutionCopy!!
+                this[keyGenerator.raw(complexity, runner)!!] = valueGenerator.raw(complexity, runner)!!
             }
-        }.value(complexity, cloner)
+        }
     }
 }
 
@@ -485,7 +586,27 @@ class ArrayGenerator(
     override fun random(complexity: Complexity, runner: TestRunner?): Value<Any> =
         random(complexity, complexity, true, runner)
 
-    fun random(complexity: Complexity, componentComplexity: Complexity, top: Boolean, runner: TestRunner?): Value<Any> {
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any = raw(complexity, complexity, true, runner)
+
+    fun random(complexity: Complexity, componentComplexity: Complexity, top: Boolean, runner: TestRunner?): Value<Any> =
+        raw(complexity, componentComplexity, top, runner).generatedValue(complexity, cloner)
+
+    // Filled directly rather than through reflection, with the same draws as the component generator
+    private fun primitiveArray(size: Int, complexity: Complexity): Any? = componentGenerator.let { generator ->
+        when (generator) {
+            is ByteGenerator -> ByteArray(size) { ByteGenerator.random(complexity, generator.random) }
+            is ShortGenerator -> ShortArray(size) { ShortGenerator.random(complexity, generator.random) }
+            is IntGenerator -> IntArray(size) { IntGenerator.random(complexity, generator.random) }
+            is LongGenerator -> LongArray(size) { LongGenerator.random(complexity, generator.random) }
+            is FloatGenerator -> FloatArray(size) { FloatGenerator.random(complexity, generator.random) }
+            is DoubleGenerator -> DoubleArray(size) { DoubleGenerator.random(complexity, generator.random) }
+            is BooleanGenerator -> BooleanArray(size) { generator.random.nextBoolean() }
+            is CharGenerator -> CharGenerator.randomChars(size, generator.random)
+            else -> null
+        }
+    }
+
+    private fun raw(complexity: Complexity, componentComplexity: Complexity, top: Boolean, runner: TestRunner?): Any {
         val (currentComplexity, nextComplexity) = if (klass.isArray) {
             complexity.level.let { level ->
                 val currentLevel = if (level == 0) {
@@ -505,19 +626,20 @@ class ArrayGenerator(
                 it
             }
         }
-        return (
-            Array.newInstance(klass, arraySize).also { array ->
-                for (index in 0 until arraySize) {
-                    val value = if (componentGenerator is ArrayGenerator) {
-                        check(nextComplexity != null) { "Invalid complexity split" }
-                        componentGenerator.random(nextComplexity, componentComplexity, false, runner)
-                    } else {
-                        componentGenerator.random(componentComplexity, runner)
-                    }.solutionCopy
-                    Array.set(array, index, value)
+        primitiveArray(arraySize, componentComplexity)?.also {
+            return it
+        }
+        return Array.newInstance(klass, arraySize).also { array ->
+            for (index in 0 until arraySize) {
+                val value = if (componentGenerator is ArrayGenerator) {
+                    check(nextComplexity != null) { "Invalid complexity split" }
+                    componentGenerator.raw(nextComplexity, componentComplexity, false, runner)
+                } else {
+                    componentGenerator.raw(componentComplexity, runner)
                 }
+                Array.set(array, index, value)
             }
-            ).value(complexity, cloner)
+        }
     }
 }
 
@@ -533,6 +655,8 @@ class BoxedGenerator(random: Random, cloner: Cloner, klass: Class<*>) : TypeGene
     override fun random(complexity: Complexity, runner: TestRunner?) =
         primitiveGenerator.random(complexity, runner) as Value<Any>
 
+    override fun raw(complexity: Complexity, runner: TestRunner?) = primitiveGenerator.raw(complexity, runner) as Any
+
     companion object {
         fun create(klass: Class<*>) = { random: Random, cloner: Cloner -> BoxedGenerator(random, cloner, klass) }
     }
@@ -547,12 +671,12 @@ class ByteGenerator(random: Random, private val cloner: Cloner) : TypeGenerators
 
     override val simple = byteArrayOf(-1, 0, 1).toSet().values(ZeroComplexity, cloner)
 
-    override val edge = setOf<Byte>().values(ZeroComplexity, cloner)
+    override val edge = setOf<Byte?>().values(ZeroComplexity, cloner)
 
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -567,12 +691,12 @@ class ShortGenerator(random: Random, private val cloner: Cloner) : TypeGenerator
 
     override val simple = shortArrayOf(-1, 0, 1).toSet().values(ZeroComplexity, cloner)
 
-    override val edge = setOf<Short>().values(ZeroComplexity, cloner)
+    override val edge = setOf<Short?>().values(ZeroComplexity, cloner)
+
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
 
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -586,11 +710,11 @@ class ShortGenerator(random: Random, private val cloner: Cloner) : TypeGenerator
 class IntGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Int>(random, cloner) {
 
     override val simple = (-1..1).toSet().values(ZeroComplexity, cloner)
-    override val edge = setOf<Int>().values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override val edge = setOf<Int?>().values(ZeroComplexity, cloner)
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -604,11 +728,11 @@ class IntGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<
 class LongGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Long>(random, cloner) {
 
     override val simple = (-1L..1L).toSet().values(ZeroComplexity, cloner)
-    override val edge = setOf<Long>().values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override val edge = setOf<Long?>().values(ZeroComplexity, cloner)
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -621,11 +745,11 @@ class LongGenerator(random: Random, private val cloner: Cloner) : TypeGenerators
 class FloatGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Float>(random, cloner) {
 
     override val simple = setOf(-0.1f, 0.0f, 0.1f).values(ZeroComplexity, cloner)
-    override val edge = setOf<Float>().values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override val edge = setOf<Float?>().values(ZeroComplexity, cloner)
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -638,11 +762,11 @@ class FloatGenerator(random: Random, private val cloner: Cloner) : TypeGenerator
 class DoubleGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Double>(random, cloner) {
 
     override val simple = setOf(-0.1, 0.0, 0.1).values(ZeroComplexity, cloner)
-    override val edge = setOf<Double>().values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override val edge = setOf<Double?>().values(ZeroComplexity, cloner)
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         fun random(complexity: Complexity, random: Random = Random) =
@@ -655,8 +779,11 @@ class DoubleGenerator(random: Random, private val cloner: Cloner) : TypeGenerato
 class BooleanGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Boolean>(random, cloner) {
 
     override val simple = setOf(true, false).values(ZeroComplexity, cloner)
-    override val edge = setOf<Boolean>().values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random.nextBoolean().value(complexity, cloner)
+    override val edge = setOf<Boolean?>().values(ZeroComplexity, cloner)
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random.nextBoolean()
 
     companion object {
         fun create(random: Random = Random, cloner: Cloner) = BooleanGenerator(random, cloner)
@@ -666,13 +793,46 @@ class BooleanGenerator(random: Random, private val cloner: Cloner) : TypeGenerat
 class CharGenerator(random: Random, private val cloner: Cloner) : TypeGenerators<Char>(random, cloner) {
 
     override val simple = setOf('A', '0').values(ZeroComplexity, cloner)
-    override val edge = setOf<Char>().values(ZeroComplexity, cloner)
+    override val edge = setOf<Char?>().values(ZeroComplexity, cloner)
     override fun random(complexity: Complexity, runner: TestRunner?) =
-        ALPHANUMERIC_CHARS.random(random).value(complexity, cloner)
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = ALPHANUMERIC_CHARS.random(random)
 
     companion object {
         val ALPHANUMERIC_CHARS: List<Char> = ('a'..'z') + ('A'..'Z') + ('0'..'9') + ' '
+        private val ALPHANUMERIC = ALPHANUMERIC_CHARS.toCharArray()
+        private const val CHAR_BITS = 6
+        private const val CHARS_PER_DRAW = 5
+
         fun create(random: Random = Random, cloner: Cloner) = CharGenerator(random, cloner)
+
+        // Later versions take each character from six bits of a random value, skipping values past the last character
+        internal fun randomChars(length: Int, random: Random): CharArray {
+            val chars = CharArray(length)
+            if (random.generatorVersion == GeneratorRandom.FIRST_VERSION) {
+                for (i in chars.indices) {
+                    chars[i] = ALPHANUMERIC[random.nextInt(ALPHANUMERIC.size)]
+                }
+                return chars
+            }
+            var bits = 0
+            var remaining = 0
+            var i = 0
+            while (i < length) {
+                if (remaining == 0) {
+                    bits = random.nextBits(CHAR_BITS * CHARS_PER_DRAW)
+                    remaining = CHARS_PER_DRAW
+                }
+                val index = bits and ((1 shl CHAR_BITS) - 1)
+                bits = bits ushr CHAR_BITS
+                remaining--
+                if (index < ALPHANUMERIC.size) {
+                    chars[i++] = ALPHANUMERIC[index]
+                }
+            }
+            return chars
+        }
     }
 }
 
@@ -684,18 +844,15 @@ class StringGenerator(random: Random, private val cloner: Cloner) : TypeGenerato
             cloner,
         )
     override val edge = listOf<String?>(null).values(ZeroComplexity, cloner)
-    override fun random(complexity: Complexity, runner: TestRunner?) = random(complexity, random).value(
-        complexity,
-        cloner,
-    )
+    override fun random(complexity: Complexity, runner: TestRunner?) =
+        raw(complexity, runner).generatedValue(complexity, cloner)
+
+    override fun raw(complexity: Complexity, runner: TestRunner?) = random(complexity, random)
 
     companion object {
         @Suppress("MemberVisibilityCanBePrivate")
         fun random(complexity: Complexity, random: Random = Random): String =
-            (0 until random.nextInt((complexity.level * 2 + 1)))
-                .map { random.nextInt(CharGenerator.ALPHANUMERIC_CHARS.size) }
-                .map(CharGenerator.ALPHANUMERIC_CHARS::get)
-                .joinToString("")
+            String(CharGenerator.randomChars(random.nextInt((complexity.level * 2 + 1)), random))
 
         fun create(random: Random = Random, cloner: Cloner) = StringGenerator(random, cloner)
     }
@@ -721,21 +878,30 @@ internal val systemInDummyExecutable = ::systemInDummy.javaMethod!!
 class JenisolFileSystem(val files: Map<String, ByteArray?> = mapOf()) {
     constructor(filename: String, contents: String) : this(mapOf(filename to contents.toByteArray()))
 
+    // Generated file systems are not modified, so the wrapped contents and hash are computed once. Not lazy delegates,
+    // since deep cloning a delegate that has not been initialized also clones its uninitialized marker.
+    private var byteBuffers: Map<String, ByteBuffer?>? = null
+    private var cachedHash: Int? = null
+
     val asByteBuffers: Map<String, ByteBuffer?>
-        get() = files.mapValues {
+        get() = byteBuffers ?: files.mapValues {
             if (it.value != null) {
                 ByteBuffer.wrap(it.value)
             } else {
                 null
             }
-        }
+        }.also { byteBuffers = it }
 
-    override fun equals(other: Any?) = when (other) {
-        !is JenisolFileSystem -> false
-        else -> asByteBuffers == other.asByteBuffers
+    private val hash: Int
+        get() = cachedHash ?: asByteBuffers.hashCode().also { cachedHash = it }
+
+    override fun equals(other: Any?) = when {
+        this === other -> true
+        other !is JenisolFileSystem -> false
+        else -> hash == other.hash && asByteBuffers == other.asByteBuffers
     }
 
-    override fun hashCode(): Int = asByteBuffers.hashCode()
+    override fun hashCode(): Int = hash
 }
 
 @Suppress("UNUSED_PARAMETER")
@@ -782,6 +948,18 @@ class ObjectGenerator(
             defaultObjects.values.shuffled(random).first().random(complexity, runner) as Value<Any>
         }
 
+    // Makes the same random choices as random. Receivers belong to their runners, so they are cloned
+    override fun raw(complexity: Complexity, runner: TestRunner?): Any =
+        if (receiverGenerator != null && random.nextBoolean()) {
+            if (random.nextBoolean() && receiverGenerator.simple.isNotEmpty()) {
+                cloner.deepClone(receiverGenerator.simple.shuffled(random).first().solutionCopy)
+            } else {
+                cloner.deepClone(receiverGenerator.random(complexity, runner).solutionCopy)
+            }
+        } else {
+            defaultObjects.values.shuffled(random).first().raw(complexity, runner) as Any
+        }
+
     companion object {
         fun create(random: Random = Random, cloner: Cloner) = ObjectGenerator(random, cloner)
         const val SIMPLE_LIMIT = 8
@@ -792,18 +970,14 @@ class ObjectGenerator(
 fun <T> Collection<T>.values(complexity: Complexity, cloner: Cloner) = toSet().also {
     check(size == it.size) { "Collection of values was not distinct" }
 }.map {
-    Value(
-        cloner.deepClone(it),
-        cloner.deepClone(it),
-        cloner.deepClone(it),
-        cloner.deepClone(it),
-        cloner.deepClone(it),
-        complexity,
-    )
+    Value(it, complexity, cloner)
 }.toSet()
 
-inline fun <reified T> T.value(complexity: Complexity, cloner: Cloner) =
-    Value(deepCopy(cloner), deepCopy(cloner), deepCopy(cloner), deepCopy(cloner), deepCopy(cloner), complexity)
+fun <T> T.value(complexity: Complexity, cloner: Cloner) = Value(this, complexity, cloner)
+
+// For values generated only to be copied, which do not need a pristine clone of their own
+internal fun <T> T.generatedValue(complexity: Complexity, cloner: Cloner) =
+    Value(LazyCopies.fromPristine(this, cloner), complexity)
 
 fun <T> Class<T>.getArrayType(start: Boolean = true): Class<*> {
     check(!start || isArray) { "Must be called on an array type" }
@@ -948,3 +1122,23 @@ class RandomGroup(private val internalRandom: Random) {
         values.clear()
     }
 }
+
+/*
+ * A random stream that records the version of the built-in generators drawing from it. Versions after the first draw
+ * from the stream differently, so a seed or trace only reproduces the same values under the version it was made with.
+ */
+abstract class GeneratorRandom(val generatorVersion: Int) : Random() {
+    init {
+        require(generatorVersion in FIRST_VERSION..LATEST_VERSION) { "Unknown generator version: $generatorVersion" }
+    }
+
+    companion object {
+        const val FIRST_VERSION = 1
+
+        // Version 2 draws five characters of strings and character arrays from each random value
+        const val LATEST_VERSION = 2
+    }
+}
+
+internal val Random.generatorVersion: Int
+    get() = (this as? GeneratorRandom)?.generatorVersion ?: GeneratorRandom.FIRST_VERSION
@@ -0,0 +1,43 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeUnit
+
+class TestAsync :
+    StringSpec({
+        "should test asynchronously" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 64)
+            val live = solution.submission(examples.java.noreceiver.addone.Correct::class.java).test(settings)
+            val async = solution.submission(examples.java.noreceiver.addone.Correct::class.java)
+                .testAsync(settings, Instant.now().plusSeconds(60))
+                .get(60, TimeUnit.SECONDS)
+            async.timeout shouldBe false
+            async.succeeded shouldBe true
+            async.formatSolutionTestingSequence() shouldBe live.formatSolutionTestingSequence()
+        }
+        "should return partial results at the deadline" {
+            val solution = solution(examples.java.noreceiver.printsforever.Correct::class.java)
+            val started = System.nanoTime()
+            val results = solution.submission(examples.java.noreceiver.printsforever.Incorrect0::class.java)
+                .testAsync(Settings(seed = 124, shrink = false), Instant.now().plusMillis(200))
+                .get(60, TimeUnit.SECONDS)
+            results.timeout shouldBe true
+            results.completed shouldBe false
+            (System.nanoTime() - started < Duration.ofSeconds(10).toNanos()) shouldBe true
+        }
+        "should cancel testing when the future is cancelled" {
+            val solution = solution(examples.java.noreceiver.printsforever.Correct::class.java)
+            val future = solution.submission(examples.java.noreceiver.printsforever.Incorrect0::class.java)
+                .testAsync(Settings(seed = 124, shrink = false), Instant.now().plusSeconds(60))
+            future.cancel(true)
+            shouldThrow<CancellationException> {
+                future.get()
+            }
+        }
+    })
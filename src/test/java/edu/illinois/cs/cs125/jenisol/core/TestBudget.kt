@@ -0,0 +1,59 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+
+class TestBudget :
+    StringSpec({
+        "should pass submissions within the step budget" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val results = solution.submission(examples.java.noreceiver.addone.Correct::class.java).test(
+                Settings(
+                    seed = 124,
+                    shrink = false,
+                    testCount = 64,
+                    stepCpuBudget = 10_000_000_000,
+                    stepAllocationBudget = 1L shl 30,
+                ),
+            )
+            results.succeeded shouldBe true
+        }
+        "should stop testing when a step exceeds its CPU budget" {
+            val solution = solution(examples.java.noreceiver.printsforever.Correct::class.java)
+            val results = solution.submission(examples.java.noreceiver.printsforever.Incorrect0::class.java).test(
+                Settings(seed = 124, shrink = false, testCount = 64, stepCpuBudget = 50_000_000),
+            )
+            results.failed shouldBe true
+            results.timeout shouldBe false
+            results.size shouldBe 1
+            results.last().differs.contains(TestResult.Differs.BUDGET_EXCEEDED) shouldBe true
+            results.explain() shouldContain "exceeded the step budget"
+        }
+        "should stop testing when a step exceeds its allocation budget" {
+            val solution = solution(examples.java.noreceiver.printsforever.Correct::class.java)
+            val results = solution.submission(examples.java.noreceiver.printsforever.Incorrect0::class.java).test(
+                Settings(seed = 124, shrink = false, testCount = 64, stepAllocationBudget = 1L shl 20),
+            )
+            results.failed shouldBe true
+            results.last().differs.contains(TestResult.Differs.BUDGET_EXCEEDED) shouldBe true
+        }
+        "should only clear interrupts that the watchdog set" {
+            val budget = StepBudget(10_000_000, -1)
+            budget.track {
+                @Suppress("ControlFlowWithEmptyBody")
+                while (!budget.exceeded) {
+                }
+            }
+            Thread.interrupted() shouldBe false
+
+            budget.reset()
+            Thread.currentThread().interrupt()
+            budget.track {
+                @Suppress("ControlFlowWithEmptyBody")
+                while (!budget.exceeded) {
+                }
+            }
+            Thread.interrupted() shouldBe true
+        }
+    })
@@ -0,0 +1,382 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import edu.illinois.cs.cs125.jenisol.core.generators.CopyEngine
+import edu.illinois.cs.cs125.jenisol.core.generators.JenisolFileSystem
+import edu.illinois.cs.cs125.jenisol.core.generators.LazyCopies
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.ints.shouldBeLessThan
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.kotest.matchers.types.shouldNotBeSameInstanceAs
+import io.kotest.matchers.string.shouldContain
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import kotlin.io.path.exists
+import kotlin.io.path.isDirectory
+import kotlin.io.path.readText
+import kotlin.io.path.writeText
+
+class TestCapture :
+    StringSpec({
+        "should capture output and control input" {
+            defaultCaptureOutputControlInput(listOf("first", "second")) {
+                System.out.println("Input?")
+                val first = System.`in`.bufferedReader().readLine()
+                System.out.println("Again?")
+                val second = System.`in`.bufferedReader().readLine()
+                System.err.println("Done")
+                first + second
+            }.also {
+                it.returned shouldBe "firstsecond"
+                it.stdout shouldBe "Input?\nAgain?\n"
+                it.stderr shouldBe "Done\n"
+                it.stdin shouldBe "first\nsecond\n"
+                it.interleavedInputOutput shouldBe "Input?\nfirst\nAgain?\nsecond\nDone\n"
+            }
+        }
+        "should interleave bulk and single byte input and output" {
+            defaultCaptureOutputControlInput(listOf("ab", "cd")) {
+                System.out.write("One\n".toByteArray())
+                System.out.flush()
+                val first = String(CharArray(3) { System.`in`.read().toChar() })
+                System.err.write('!'.code)
+                System.err.flush()
+                "Two\n".toByteArray().forEach { System.out.write(it.toInt()) }
+                System.out.flush()
+                val second = System.`in`.readNBytes(3).decodeToString()
+                repeat(1024) { System.out.print("x") }
+                first + second
+            }.also {
+                it.returned shouldBe "ab\ncd\n"
+                it.stdout shouldBe "One\nTwo\n" + "x".repeat(1024)
+                it.stderr shouldBe "!"
+                it.stdin shouldBe "ab\ncd\n"
+                it.interleavedInputOutput shouldBe "One\nab\n!Two\ncd\n" + "x".repeat(1024)
+            }
+        }
+        "should provide large multi-line input in bulk" {
+            val large = (0 until 4096).joinToString("\n") { "é😀 $it" }
+            defaultCaptureOutputControlInput(listOf(large, "last")) {
+                val lines = System.`in`.bufferedReader().readLines()
+                System.`in`.read() shouldBe -1
+                System.out.println(lines.size)
+                System.`in`.available() shouldBe "last\n".length
+                lines.last() + System.`in`.bufferedReader().readLine()
+            }.also {
+                it.returned shouldBe "é😀 4095last"
+                it.stdin shouldBe "$large\nlast\n"
+                it.interleavedInputOutput shouldBe "$large\n4096\nlast\n"
+            }
+        }
+        "should decode output in the default charset" {
+            val line = "é😀 ü\n"
+            val expected = ByteArrayOutputStream().also { PrintStream(it).apply { print(line) }.flush() }.toString()
+            defaultCaptureOutputControlInput { System.out.print(line) }.stdout shouldBe expected
+        }
+        "should not include output written after the capture returns" {
+            lateinit var writer: Thread
+            val result = defaultCaptureOutputControlInput {
+                val stdout = System.out
+                writer = thread(start = false) {
+                    stdout.print("Late")
+                    stdout.flush()
+                }
+                System.out.print("Early")
+            }
+            writer.start()
+            writer.join()
+            result.stdout shouldBe "Early"
+            result.interleavedInputOutput shouldBe "Early"
+            result shouldBe result.copy()
+        }
+        "should reuse capture state between calls" {
+            val capture: CaptureOutputControlInput = ::defaultCaptureOutputControlInput
+            // Dropping the output releases the buffers for the next capture
+            fun hello() = capture(listOf(), mapOf()) { System.out.println("Hello") }.also {
+                it.stdout shouldBe "Hello\n"
+            }.withoutOutput()
+
+            hello()
+            val reused = reusedCaptureState()
+            reused[0] shouldNotBe null
+            repeat(8) { hello() }
+            reusedCaptureState().zip(reused).forEach { (current, first) -> current shouldBeSameInstanceAs first }
+            capture.reset()
+            hello()
+            reusedCaptureState()[0] shouldNotBeSameInstanceAs reused[0]
+        }
+        "should truncate output at the output limit" {
+            val solution = solution(examples.java.noreceiver.printstoomuch.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 32, outputLimit = 64)
+            solution.submission(examples.java.noreceiver.printstoomuch.Correct::class.java).test(settings).also {
+                it.succeeded shouldBe true
+                it.all { result -> result.submission.truncatedLines == 0 } shouldBe true
+            }
+            solution.submission(examples.java.noreceiver.printstoomuch.Incorrect0::class.java).test(settings).also {
+                it.failed shouldBe true
+                it.first { result -> result.failed }.submission.also { result ->
+                    result.stdout.length shouldBe 64
+                    result.truncatedLines shouldBeGreaterThan 4096 - 64
+                }
+                it.explain() shouldContain "truncated at the output limit"
+            }
+        }
+        "should compare output past the output limits" {
+            val solution = solution(examples.java.noreceiver.printsmany.Correct::class.java)
+            val correct = solution.submission(examples.java.noreceiver.printsmany.Correct::class.java)
+            val incorrect = solution.submission(examples.java.noreceiver.printsmany.Incorrect0::class.java)
+
+            val callLimited = Settings(seed = 124, shrink = false, testCount = 32, outputLimit = 64)
+            correct.test(callLimited).succeeded shouldBe true
+            incorrect.test(callLimited).also {
+                it.failed shouldBe true
+                it.first { result -> result.failed }.also { result ->
+                    result.differs shouldBe setOf(TestResult.Differs.STDOUT)
+                    result.submission.stdout shouldBe result.solution.stdout
+                    result.submission.truncatedLines shouldBe result.solution.truncatedLines
+                }
+            }
+
+            // Only the submission's compared calls use up the run limit, and later calls are still compared
+            val runLimited = Settings(seed = 124, shrink = false, testCount = 32, runOutputLimit = 1024, runAll = true)
+            correct.test(runLimited).also {
+                it.succeeded shouldBe true
+                it.all { result -> result.solution.truncatedLines == 0 } shouldBe true
+                it.last().submission.stdout shouldBe ""
+            }
+            incorrect.test(runLimited).also {
+                it.last().submission.stdout shouldBe ""
+                it.all { result -> result.differs.contains(TestResult.Differs.STDOUT) } shouldBe true
+            }
+        }
+        "should stop a call once its output diverges from the solution" {
+            val solution = solution(examples.java.noreceiver.printstoomuch.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 32, outputDivergenceMargin = 0)
+            solution.submission(examples.java.noreceiver.printstoomuch.Correct::class.java).test(settings).also {
+                it.succeeded shouldBe true
+            }
+            solution.submission(examples.java.noreceiver.printstoomuch.Incorrect0::class.java).test(settings).also {
+                it.failed shouldBe true
+                it.first { result -> result.failed }.also { result ->
+                    result.submission.stoppedAtDivergence shouldBe true
+                    result.submission.threw shouldBe null
+                    // The second line diverges and is the margin's worth past it, so the third write is stopped
+                    result.submission.stdout shouldBe result.solution.stdout.repeat(2)
+                    result.differs shouldBe setOf(TestResult.Differs.STDOUT)
+                }
+                it.explain() shouldContain "Submission printed"
+            }
+
+            // Non-ASCII output is compared in the charset it is captured in
+            val line = "é😀 ü\n"
+            val expected = defaultCaptureOutputControlInput { System.out.print(line) }.stdout
+            expectOutput(expected, 0) {
+                defaultCaptureOutputControlInput { System.out.print(line) }
+            }.also {
+                it.stoppedAtDivergence shouldBe false
+                it.stdout shouldBe expected
+            }
+            expectOutput(expected, 0) {
+                defaultCaptureOutputControlInput {
+                    System.out.print(line)
+                    System.out.print(line)
+                    System.out.print(line)
+                }
+            }.also {
+                it.stoppedAtDivergence shouldBe true
+                it.stdout shouldBe expected.repeat(2)
+            }
+        }
+        "should explain long output differences with a bounded diff" {
+            val solution = (1..2000).joinToString("") { "$it\n" }
+            val submission = solution.replace("\n1000\n", "\nchanged\n").replace("\n1500\n", "\n")
+            OutputDiff(solution, submission).explain("output") shouldBe """
+Solution and submission output first differ at line 1000:
+  997
+  998
+  999
+- 1000
++ changed
+  1001
+  1002
+  1003
+2 lines removed and 1 lines added in the first 1024 lines compared
+Solution printed 2000 lines (length ${solution.length}), submission printed 1999 lines (length ${submission.length})
+            """.trim()
+            OutputDiff("a\nb\n", "a\nb").explain("output") shouldContain "- b\n+ b (no newline)\n"
+
+            val settings = Settings(seed = 124, shrink = false, testCount = 32)
+            val solutionClass = examples.java.noreceiver.printstoomuch.Correct::class.java
+            solution(solutionClass).submission(examples.java.noreceiver.printstoomuch.Incorrect0::class.java)
+                .test(settings).explain().also {
+                    it shouldContain "first differ at line 2:"
+                    it.length shouldBeLessThan OutputDiff.FULL_OUTPUT_LENGTH
+                }
+        }
+        "should provide a fresh filesystem to each call" {
+            repeat(2) {
+                defaultCaptureOutputControlInput(fileSystem = mapOf("/testing.txt" to "Hello".toByteArray())) {
+                    val fileSystem = filesystem.get()
+                    fileSystem.getPath("/testing.txt").readText() shouldBe "Hello"
+                    fileSystem.getPath("/other.txt").exists() shouldBe false
+                    fileSystem.getPath("/work").isDirectory() shouldBe true
+                    fileSystem.getPath("/other.txt").writeText("World")
+                    fileSystem.getPath("/testing.txt").writeText("Goodbye")
+                }.threw shouldBe null
+            }
+            filesystem.get() shouldBe null
+        }
+        "should reuse an unmodified filesystem for the same contents" {
+            clearFileSystemPool()
+            val start = fileSystemPoolFills
+
+            // Returns how many times a filesystem has been populated after reading and then changing it
+            fun fills(change: (Path) -> Unit = {}): Int {
+                defaultCaptureOutputControlInput(fileSystem = mapOf("/files/testing.txt" to "Hello".toByteArray())) {
+                    filesystem.get().getPath("/files/testing.txt").also {
+                        it.readText() shouldBe "Hello"
+                        change(it)
+                    }
+                }.threw shouldBe null
+                return fileSystemPoolFills - start
+            }
+            fills() shouldBe 1
+            fills() shouldBe 1
+
+            // Changes that restore the modification times they disturb, so are only found by checking contents
+            fun Path.restoringTimes(change: (Path) -> Unit) {
+                val times = listOf(this, parent).associateWith { Files.getLastModifiedTime(it) }
+                change(this)
+                times.forEach { (path, time) -> Files.setLastModifiedTime(path, time) }
+            }
+            val changes = listOf<(Path) -> Unit>(
+                { it.writeText("World") },
+                { it.restoringTimes { path -> path.writeText("World") } },
+                {
+                    it.restoringTimes { path ->
+                        Files.delete(path)
+                        path.writeText("Hello")
+                    }
+                },
+                { it.restoringTimes { path -> path.resolveSibling("other.txt").writeText("") } },
+                {
+                    val time = Files.getLastModifiedTime(it).to(TimeUnit.DAYS) + 1
+                    Files.setLastModifiedTime(it, FileTime.from(time, TimeUnit.DAYS))
+                },
+            )
+            changes.forEachIndexed { index, change ->
+                fills(change) shouldBe index + 1
+                fills() shouldBe index + 2
+                fills() shouldBe index + 2
+            }
+            clearFileSystemPool()
+        }
+        "should share a large filesystem between calls" {
+            clearFileSystemPool()
+            val start = fileSystemPoolFills
+            val large = "a".repeat(1024 * 1024)
+            val fixture = JenisolFileSystem("/files/large.txt", large)
+            val copies = List(LazyCopies.COUNT) { CopyEngine.shared().deepClone(arrayOf<Any?>(fixture)) }
+            copies.forEach { it[0] shouldBeSameInstanceAs fixture }
+
+            repeat(LazyCopies.COUNT * 4) { index ->
+                val files = (copies[index % copies.size][0] as JenisolFileSystem).files
+                defaultCaptureOutputControlInput(fileSystem = files) {
+                    filesystem.get().getPath("/files/large.txt").readText() shouldBe large
+                }.threw shouldBe null
+            }
+            fileSystemPoolFills - start shouldBe 1
+            clearFileSystemPool()
+        }
+        "should compare the files left by the solution and submission" {
+            val solution = solution(examples.java.noreceiver.writehelloworld.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 32, captureFileSystem = true)
+            solution.submission(examples.java.noreceiver.writehelloworld.Correct::class.java).test(settings).also {
+                it.succeeded shouldBe true
+            }
+            solution.submission(examples.java.noreceiver.writehelloworld.Incorrect0::class.java).test(settings).also {
+                it.failed shouldBe true
+                it.first { result -> result.failed }.differs shouldBe setOf(TestResult.Differs.FILESYSTEM)
+                it.explain() shouldContain "Submission left /output.txt containing"
+            }
+            solution.submission(examples.java.noreceiver.writehelloworld.Incorrect1::class.java).test(settings).also {
+                it.failed shouldBe true
+                it.explain() shouldContain "Submission did not leave /output.txt"
+            }
+            solution.submission(examples.java.noreceiver.writehelloworld.Incorrect0::class.java)
+                .test(settings.copy(captureFileSystem = false)).succeeded shouldBe true
+
+            fun manifest(contents: String) = snapshotFileSystem(true) {
+                defaultCaptureOutputControlInput(fileSystem = mapOf("/input.txt" to "input".toByteArray())) {
+                    filesystem.get().getPath("/large.txt").writeText(contents)
+                }
+            }.fileSystem!!
+            val large = "a".repeat(8192)
+            manifest(large).also {
+                it shouldBe manifest(large)
+                it.size("/large.txt") shouldBe 8192
+                it.size("/input.txt") shouldBe 5
+                it.differingPaths(manifest(large + "b")) shouldBe listOf("/large.txt")
+                it.explain(manifest(large + "b")) shouldContain "(length 8193 bytes, first 1024 characters shown)"
+            }
+        }
+        "should capture output concurrently without mixing threads" {
+            val results = arrayOfNulls<CapturedResult>(8)
+            (0 until results.size).map { index ->
+                thread {
+                    results[index] = concurrentCaptureOutputControlInput(listOf("$index")) {
+                        repeat(64) {
+                            System.out.println("$index")
+                            Thread.yield()
+                        }
+                        System.err.print("$index")
+                        System.`in`.bufferedReader().readLine()
+                    }
+                }
+            }.forEach { it.join() }
+            results.forEachIndexed { index, result ->
+                result!!.returned shouldBe "$index"
+                result.stdout shouldBe "$index\n".repeat(64)
+                result.stderr shouldBe "$index"
+            }
+        }
+        "should not carry interrupted output into later concurrent captures" {
+            repeat(2) {
+                expectOutput("a", 0) {
+                    concurrentCaptureOutputControlInput {
+                        System.out.print("bb")
+                        // Longer than the PrintStream's character buffer, which is left full when the write stops
+                        System.out.print("c".repeat(16 * 1024))
+                    }
+                }.stoppedAtDivergence shouldBe true
+                concurrentCaptureOutputControlInput {
+                    System.out.print("x")
+                }.stdout shouldBe "x"
+            }
+        }
+        "should test submissions concurrently" {
+            val submission = examples.java.noreceiver.systemininterleaving.Correct::class.java.let {
+                solution(it).submission(it)
+            }
+            val results = arrayOfNulls<TestResults>(4)
+            (0 until results.size).map { index ->
+                thread {
+                    results[index] = submission.test(
+                        Settings(seed = 124, shrink = false, testCount = 64),
+                        ::concurrentCaptureOutputControlInput,
+                    )
+                }
+            }.forEach { it.join() }
+            results.forEach {
+                it!!.succeeded shouldBe true
+                it.size shouldBe results.first()!!.size
+            }
+        }
+    })
@@ -1,10 +1,17 @@
 package edu.illinois.cs.cs125.jenisol.core
 
 import com.rits.cloning.Cloner
+import edu.illinois.cs.cs125.jenisol.core.generators.CharGenerator
 import edu.illinois.cs.cs125.jenisol.core.generators.Complexity
+import edu.illinois.cs.cs125.jenisol.core.generators.CopyEngine
 import edu.illinois.cs.cs125.jenisol.core.generators.Defaults
+import edu.illinois.cs.cs125.jenisol.core.generators.GeneratorRandom
+import edu.illinois.cs.cs125.jenisol.core.generators.ObjectGenerator
+import edu.illinois.cs.cs125.jenisol.core.generators.ReceiverGenerator
+import edu.illinois.cs.cs125.jenisol.core.generators.StringGenerator
 import edu.illinois.cs.cs125.jenisol.core.generators.TypeGenerator
 import edu.illinois.cs.cs125.jenisol.core.generators.TypeParameterGenerator
+import edu.illinois.cs.cs125.jenisol.core.generators.Value
 import edu.illinois.cs.cs125.jenisol.core.generators.compareBoxed
 import edu.illinois.cs.cs125.jenisol.core.generators.getArrayType
 import edu.illinois.cs.cs125.jenisol.core.generators.product
@@ -15,6 +22,8 @@ import io.kotest.matchers.collections.shouldHaveSize
 import io.kotest.matchers.ints.shouldBeGreaterThan
 import io.kotest.matchers.ints.shouldBeLessThanOrEqual
 import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import io.kotest.matchers.types.shouldNotBeSameInstanceAs
 import java.lang.reflect.Method
 import java.lang.reflect.Type
 import kotlin.math.pow
@@ -178,6 +187,141 @@ class TestGenerators :
                     method.testGenerator()
                 }
             }
+            "it should copy generated values without sharing mutable state" {
+                val engine = CopyEngine()
+                val row = intArrayOf(1, 2)
+                val rows = arrayOf(row, row, intArrayOf(3))
+                engine.deepClone(rows).also { copy ->
+                    copy shouldNotBeSameInstanceAs rows
+                    copy[0] shouldNotBeSameInstanceAs row
+                    copy[1] shouldBeSameInstanceAs copy[0]
+                    copy.map { it.toList() } shouldBe rows.map { it.toList() }
+                }
+                val list = arrayListOf(row, row, null)
+                engine.deepClone(list).also { copy ->
+                    copy[0] shouldNotBeSameInstanceAs row
+                    copy[1] shouldBeSameInstanceAs copy[0]
+                    copy[2] shouldBe null
+                }
+                val map = linkedMapOf("first" to mutableListOf(1), "second" to mutableListOf(2))
+                engine.deepClone(map).also { copy ->
+                    copy shouldBe map
+                    copy.keys.toList() shouldBe map.keys.toList()
+                    copy["first"] shouldNotBeSameInstanceAs map["first"]
+                }
+                // Hash collections whose tables are larger than a clone of them would be keep their iteration order
+                listOf(48, 96).forEach { size ->
+                    val hashMap = HashMap<Int, MutableList<Int>>()
+                    val random = Random(124)
+                    while (hashMap.size < size) {
+                        hashMap[random.nextInt(1024)] = mutableListOf()
+                    }
+                    engine.deepClone(hashMap).keys.toList() shouldBe hashMap.keys.toList()
+                    val hashSet = HashSet<Int>().also { it.addAll(hashMap.keys) }
+                    engine.deepClone(hashSet).toList() shouldBe hashSet.toList()
+                }
+                val string = "test"
+                engine.deepClone(string) shouldBeSameInstanceAs string
+                val sorted = java.util.TreeMap(mapOf(1 to mutableListOf(1)))
+                engine.deepClone(sorted).also { copy ->
+                    copy shouldBe sorted
+                    copy[1] shouldNotBeSameInstanceAs sorted[1]
+                }
+            }
+            "it should copy values on demand" {
+                var clones = 0
+                val engine = object : CopyEngine() {
+                    override fun <T : Any?> deepClone(o: T): T {
+                        clones++
+                        return super.deepClone(o)
+                    }
+                }
+                val source = intArrayOf(1, 2)
+                val value = Value(source, Complexity(), engine)
+                source[0] = 3
+                clones shouldBe 1
+                value.solution.toList() shouldBe listOf(1, 2)
+                value.solution shouldBeSameInstanceAs value.solution
+                clones shouldBe 2
+                listOf(value.submission, value.solutionCopy, value.submissionCopy, value.unmodifiedCopy).forEach {
+                    it shouldNotBeSameInstanceAs value.solution
+                    it.toList() shouldBe listOf(1, 2)
+                }
+                clones shouldBe 5
+            }
+            "it should generate composite values without copying their elements" {
+                var clones = 0
+                val engine = object : CopyEngine() {
+                    override fun <T : Any?> deepClone(o: T): T {
+                        clones++
+                        return super.deepClone(o)
+                    }
+                }
+                Defaults.create(Array<Array<IntArray>>::class.java, cloner = engine).also { generator ->
+                    clones = 0
+                    @Suppress("UNCHECKED_CAST")
+                    (generator.raw(Complexity(Complexity.MAX), null) as Array<Array<IntArray>>).totalSize().also {
+                        it shouldBeGreaterThan 0
+                    }
+                    clones shouldBe 0
+                    generator.random(Complexity(Complexity.MAX), null).also { value ->
+                        clones shouldBe 0
+                        value.solution shouldNotBeSameInstanceAs value.submission
+                        clones shouldBe 2
+                    }
+                }
+            }
+            "it should not share receivers through composite values" {
+                val klass = examples.java.receiver.kotlinvalvar.Correct::class.java
+                val receivers = List(5) { examples.java.receiver.kotlinvalvar.Correct("$it") }
+                val receiver = Value<Any>(
+                    receivers[0], receivers[1], receivers[2], receivers[3], receivers[4], Complexity(0),
+                )
+                val receiverGenerator = ReceiverGenerator(
+                    Random(124),
+                    mutableListOf(receiver),
+                    solution(klass).submission(klass),
+                    CopyEngine(),
+                )
+                val generator = ObjectGenerator(Random(124), CopyEngine(), receiverGenerator)
+                val generated = List(64) { generator.raw(Complexity(Complexity.MAX), null) } +
+                    List(8) { receiverGenerator.raw(Complexity(Complexity.MAX), null) }
+                generated.count { it is examples.java.receiver.kotlinvalvar.Correct } shouldBeGreaterThan 8
+                generated.forEach { value ->
+                    receivers.none { it === value } shouldBe true
+                }
+            }
+            "it should draw characters according to the generator version" {
+                class CountingRandom(version: Int) : GeneratorRandom(version) {
+                    private val random = Random(124)
+                    var draws = 0
+                    override fun nextBits(bitCount: Int) = random.nextBits(bitCount).also { draws++ }
+                }
+                val first = CountingRandom(GeneratorRandom.FIRST_VERSION)
+                val latest = CountingRandom(GeneratorRandom.LATEST_VERSION)
+                val plain = Random(124)
+                repeat(128) {
+                    StringGenerator.random(Complexity(Complexity.MAX), first) shouldBe
+                        StringGenerator.random(Complexity(Complexity.MAX), plain)
+                    StringGenerator.random(Complexity(Complexity.MAX), latest).forEach {
+                        (it in CharGenerator.ALPHANUMERIC_CHARS) shouldBe true
+                    }
+                }
+                latest.draws * 2 shouldBeLessThanOrEqual first.draws
+
+                val solution = solution(examples.java.noreceiver.stringsplit.Correct::class.java)
+                val settings = Settings(seed = 124, shrink = false, testCount = 64, recordTrace = true)
+                val latestSettings = settings.copy(generatorVersion = GeneratorRandom.LATEST_VERSION)
+                solution.submission(examples.java.noreceiver.stringsplit.Correct::class.java)
+                    .test(latestSettings).succeeded shouldBe true
+                val recorded = solution.submission(examples.java.noreceiver.stringsplit.Incorrect0::class.java)
+                    .test(latestSettings).also {
+                        it.failed shouldBe true
+                    }
+                solution.submission(examples.java.noreceiver.stringsplit.Incorrect0::class.java)
+                    .test(latestSettings, followTrace = recorded.randomTrace)
+                    .formatSolutionTestingSequence() shouldBe recorded.formatSolutionTestingSequence()
+            }
             "it should generate nested arrays properly" {
                 Defaults.create(Array<Array<IntArray>>::class.java, cloner = Cloner.shared()).also { generator ->
                     (0..128).map {
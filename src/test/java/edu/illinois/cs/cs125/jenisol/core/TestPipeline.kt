@@ -0,0 +1,47 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+
+class TestPipeline :
+    StringSpec({
+        "should produce reproducible results when pipelining generation" {
+            val solution = solution(examples.java.noreceiver.countarrayequals1d.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 128, pipelineGeneration = true)
+            solution.submission(examples.java.noreceiver.countarrayequals1d.Correct::class.java).test(settings).also {
+                it.succeeded shouldBe true
+            }
+            val first = solution.submission(examples.java.noreceiver.countarrayequals1d.Incorrect0::class.java)
+                .test(settings)
+            val second = solution.submission(examples.java.noreceiver.countarrayequals1d.Incorrect0::class.java)
+                .test(settings)
+            first.failed shouldBe true
+            first.size shouldBe second.size
+            first.formatSolutionTestingSequence() shouldBe second.formatSolutionTestingSequence()
+        }
+        "should not pipeline @RandomParameters methods" {
+            val klass = examples.java.noreceiver.mapreturn.Correct::class.java
+            val settings = Settings(seed = 124, shrink = false, testCount = 64)
+            val solution = solution(klass)
+            solution.generatorFactory.shareableExecutables.size shouldBe 1
+            solution.generatorFactory.pipelineableExecutables shouldBe setOf()
+            solution.submission(klass).test(settings.copy(pipelineGeneration = true))
+                .formatSolutionTestingSequence() shouldBe
+                solution.submission(klass).test(settings).formatSolutionTestingSequence()
+        }
+        "should follow a trace recorded while pipelining generation" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(
+                seed = 124,
+                shrink = true,
+                testCount = 64,
+                recordTrace = true,
+                pipelineGeneration = true,
+            )
+            val recorded = solution.submission(examples.java.noreceiver.addone.Incorrect0::class.java).test(settings)
+            val followed = solution.submission(examples.java.noreceiver.addone.Incorrect0::class.java)
+                .test(settings, followTrace = recorded.randomTrace)
+            followed.size shouldBe recorded.size
+            followed.formatSolutionTestingSequence() shouldBe recorded.formatSolutionTestingSequence()
+        }
+    })
@@ -0,0 +1,90 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import edu.illinois.cs.cs125.jenisol.core.generators.Fingerprint
+import edu.illinois.cs.cs125.jenisol.core.generators.LazyCopies
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+
+class TestRunStatistics :
+    StringSpec({
+        "should skip unmodified copies for static methods" {
+            val klass = examples.java.noreceiver.addone.Correct::class.java
+            solution(klass).submission(klass).test(Settings(seed = 124, shrink = false, testCount = 64)).also {
+                it.succeeded shouldBe true
+                it.statistics.unmodifiedCopyRuns shouldBe 0
+                it.statistics.skippedUnmodifiedCopyRuns shouldBe it.size
+                it.statistics.invocations shouldBe it.size * 4
+            }
+        }
+        "should not make unmodified copies for static-only problems" {
+            val klass = examples.java.noreceiver.addone.Correct::class.java
+            solution(klass).also { it.skipReceiver shouldBe true }
+                .submission(klass).test(Settings(seed = 124, shrink = false, testCount = 64)).also {
+                    it.succeeded shouldBe true
+                    it.forEach { result -> result.allParameters.made(LazyCopies.UNMODIFIED_COPY) shouldBe false }
+                }
+        }
+        "should run unmodified copies when receivers are returned" {
+            val klass = examples.java.receiver.receiverwithtransformer.Correct::class.java
+            solution(klass).submission(klass).test(Settings(seed = 124, shrink = false)).also {
+                it.succeeded shouldBe true
+                it.statistics.unmodifiedCopyRuns shouldBeGreaterThan 0
+                it.statistics.skippedUnmodifiedCopyRuns shouldBeGreaterThan 0
+            }
+
+            val statistics = RunStatistics()
+            val ran = mutableListOf<Int>()
+            DeferredRuns(statistics).also { deferred ->
+                val receiver = Any()
+                repeat(DeferredRuns.MAX_PENDING + 8) { index ->
+                    deferred.defer(setOf(receiver)) { ran += index }
+                }
+                deferred.size shouldBe DeferredRuns.MAX_PENDING
+                ran shouldBe (0 until 8).toList()
+                deferred.flush(setOf(receiver))
+                deferred.size shouldBe 0
+                ran shouldBe (0 until DeferredRuns.MAX_PENDING + 8).toList()
+            }
+            statistics.deferredUnmodifiedCopyRuns shouldBe DeferredRuns.MAX_PENDING + 8
+        }
+        "should fingerprint parameters instead of running execution copies" {
+            val settings = Settings(seed = 124, shrink = false, testCount = 64)
+            val fingerprinted = settings.copy(fingerprintParameters = true)
+            solution(examples.java.noreceiver.intarrayargument.Correct::class.java).also { solution ->
+                solution.submission(examples.java.noreceiver.intarrayargument.Correct::class.java)
+                    .test(fingerprinted).also {
+                        it.succeeded shouldBe true
+                        it.statistics.skippedCopyRuns shouldBe it.size * 2
+                        it.statistics.invocations shouldBe it.size * 2
+                    }
+                val submission = solution.submission(examples.java.noreceiver.intarrayargument.Incorrect0::class.java)
+                val expected = submission.test(settings).first { it.failed }
+                submission.test(fingerprinted).first { it.failed }.also {
+                    it.differs.contains(TestResult.Differs.PARAMETERS) shouldBe true
+                    it.differs shouldBe expected.differs
+                    it.stepCount shouldBe expected.stepCount
+                }
+            }
+            examples.java.receiver.kotlinvalvar.Correct::class.java.also { klass ->
+                val expected = solution(klass).submission(klass).test(settings)
+                solution(klass).submission(klass).test(fingerprinted).also {
+                    it.succeeded shouldBe true
+                    it.size shouldBe expected.size
+                    it.statistics.skippedCopyRuns shouldBe it.size * 2
+                }
+            }
+            solution(examples.java.receiver.bothwithanothermethod.Correct::class.java).also { solution ->
+                solution.fingerprintable shouldBe false
+                solution.submission(examples.java.receiver.bothwithanothermethod.Correct::class.java)
+                    .test(fingerprinted).statistics.skippedCopyRuns shouldBe 0
+            }
+
+            Fingerprint.of(arrayOf(linkedSetOf(1, 2), mapOf("a" to 1))) shouldBe
+                Fingerprint.of(arrayOf(linkedSetOf(2, 1), mapOf("a" to 1)))
+            Fingerprint.of(arrayOf(intArrayOf(1, 2))) shouldNotBe Fingerprint.of(arrayOf(intArrayOf(2, 1)))
+            Fingerprint.of(arrayOf(listOf(1L))) shouldNotBe Fingerprint.of(arrayOf(listOf(1)))
+            arrayOfNulls<Any>(1).also { it[0] = it }.let { Fingerprint.of(it) } shouldBe null
+        }
+    })
@@ -0,0 +1,108 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.shouldNotBe
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class TestSharding :
+    StringSpec({
+        "should test with multiple seeds in parallel" {
+            val executor = Executors.newFixedThreadPool(4)
+            try {
+                val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+                val settings = Settings(shrink = false, testCount = 256)
+                val seeds = listOf(124, 125, 126, 127)
+
+                solution.submission(examples.java.noreceiver.addone.Correct::class.java)
+                    .testSharded(seeds, executor, settings).also {
+                        it.succeeded shouldBe true
+                        it.size shouldBe 256
+                        it.completed shouldBe true
+                    }
+
+                val incorrect = solution.submission(examples.java.noreceiver.addone.Incorrect0::class.java)
+                val first = incorrect.testSharded(seeds, executor, settings)
+                val second = incorrect.testSharded(seeds, executor, settings)
+                first.failed shouldBe true
+                first.explain() shouldBe second.explain()
+                first.map { it.stepCount } shouldBe second.map { it.stepCount }
+            } finally {
+                executor.shutdown()
+            }
+        }
+        "should cancel the other shards when one throws" {
+            val executor = Executors.newFixedThreadPool(2)
+            try {
+                val calls = AtomicInteger()
+                val sleeping = CountDownLatch(1)
+                val cancelled = CountDownLatch(1)
+                // The first shard to capture throws once the other is waiting to be cancelled
+                val capture: CaptureOutputControlInput = { stdin, fileSystem, run ->
+                    if (calls.getAndIncrement() == 0) {
+                        sleeping.await()
+                        error("Failed")
+                    }
+                    sleeping.countDown()
+                    try {
+                        Thread.sleep(Long.MAX_VALUE)
+                    } catch (e: InterruptedException) {
+                        cancelled.countDown()
+                        throw e
+                    }
+                    defaultCaptureOutputControlInput(stdin, fileSystem, run)
+                }
+                val klass = examples.java.noreceiver.addone.Correct::class.java
+                shouldThrow<IllegalStateException> {
+                    solution(klass).submission(klass)
+                        .testSharded(listOf(1, 2), executor, Settings(shrink = false, testing = true), capture)
+                }
+                cancelled.await(8, TimeUnit.SECONDS) shouldBe true
+            } finally {
+                executor.shutdown()
+            }
+        }
+        "should leave the caller interrupted after interrupting the shards" {
+            val executor = Executors.newFixedThreadPool(2)
+            try {
+                val started = CountDownLatch(2)
+                val capture: CaptureOutputControlInput = { stdin, fileSystem, run ->
+                    started.countDown()
+                    Thread.sleep(Long.MAX_VALUE)
+                    defaultCaptureOutputControlInput(stdin, fileSystem, run)
+                }
+                val klass = examples.java.noreceiver.addone.Correct::class.java
+                var results: TestResults? = null
+                var interrupted = false
+                val caller = thread {
+                    results = solution(klass).submission(klass)
+                        .testSharded(listOf(1, 2), executor, Settings(shrink = false), capture)
+                    interrupted = Thread.currentThread().isInterrupted
+                }
+                started.await(8, TimeUnit.SECONDS) shouldBe true
+                caller.interrupt()
+                caller.join(8000)
+                results shouldNotBe null
+                interrupted shouldBe true
+            } finally {
+                executor.shutdown()
+            }
+        }
+        "should test receivers with multiple seeds in parallel" {
+            val executor = Executors.newFixedThreadPool(2)
+            try {
+                val klass = examples.java.receiver.receiverwithtransformer.Correct::class.java
+                solution(klass).submission(klass).testSharded(listOf(1, 2), executor, Settings(shrink = false)).also {
+                    it.succeeded shouldBe true
+                    it.finishedReceivers shouldBe true
+                }
+            } finally {
+                executor.shutdown()
+            }
+        }
+    })
@@ -0,0 +1,39 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import edu.illinois.cs.cs125.jenisol.core.generators.SharedParameters
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+
+class TestSharedParameters :
+    StringSpec({
+        "should share generated parameters across a batch of submissions" {
+            val solution = solution(examples.java.noreceiver.countarrayequals1d.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 128, recordTrace = true)
+            val submissions = listOf(
+                examples.java.noreceiver.countarrayequals1d.Correct::class.java,
+                examples.java.noreceiver.countarrayequals1d.Incorrect0::class.java,
+                examples.java.noreceiver.countarrayequals1d.Correct::class.java,
+            )
+            val batch = solution.testMany(submissions, settings)
+            batch.size shouldBe submissions.size
+            submissions.zip(batch).forEach { (klass, shared) ->
+                val live = solution.submission(klass).test(settings)
+                shared.succeeded shouldBe live.succeeded
+                shared.size shouldBe live.size
+                shared.formatSolutionTestingSequence() shouldBe live.formatSolutionTestingSequence()
+                shared.randomTrace shouldBe live.randomTrace
+            }
+        }
+        "should generate each shared parameter once" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 64)
+            val sharedParameters = SharedParameters(solution, 124)
+            repeat(2) {
+                solution.submission(examples.java.noreceiver.addone.Correct::class.java)
+                    .test(settings, sharedParameters = sharedParameters)
+            }
+            sharedParameters.misses shouldBeGreaterThan 0
+            sharedParameters.hits shouldBe sharedParameters.misses
+        }
+    })
@@ -0,0 +1,31 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.shouldBe
+
+class TestStreaming :
+    StringSpec({
+        "should retain only counters for passing submissions when streaming" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 256)
+            val submission = solution.submission(examples.java.noreceiver.addone.Correct::class.java)
+            val live = submission.test(settings)
+            val streamed = submission.test(settings.copy(streaming = true))
+            streamed.succeeded shouldBe true
+            streamed.size shouldBe 0
+            streamed.testedCount shouldBe live.size
+            streamed.explain() shouldBe live.explain()
+        }
+        "should retain the explained failure when streaming" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, runAll = true, testCount = 256)
+            val submission = solution.submission(examples.java.noreceiver.addone.Incorrect0::class.java)
+            val live = submission.test(settings)
+            val streamed = submission.test(settings.copy(streaming = true))
+            streamed.failed shouldBe true
+            streamed.size shouldBe 1
+            streamed.testedCount shouldBe live.size
+            streamed.failedCount shouldBe live.count { it.failed }
+            streamed.explain() shouldBe live.explain()
+        }
+    })
@@ -0,0 +1,61 @@
+package edu.illinois.cs.cs125.jenisol.core
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.StringSpec
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+
+class TestTranscript :
+    StringSpec({
+        "should replay solution transcripts" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val settings = Settings(seed = 124, shrink = false, testCount = 128)
+            val transcript = solution.recordTranscript(settings)
+            transcript.size shouldBe 128
+
+            listOf(
+                examples.java.noreceiver.addone.Correct::class.java,
+                examples.java.noreceiver.addone.Incorrect0::class.java,
+            ).forEach { klass ->
+                val diverged = mutableListOf<Int>()
+                val live = solution.submission(klass).test(settings)
+                val replayed = solution.submission(klass).test(
+                    settings,
+                    testingEventListener = { event ->
+                        if (event is TranscriptDiverged) {
+                            diverged += event.stepCount
+                        }
+                    },
+                    transcript = transcript,
+                )
+                replayed.succeeded shouldBe live.succeeded
+                replayed.size shouldBe live.size
+                replayed.statistics.replayedSolutionSteps shouldBeGreaterThan 0
+                replayed.formatSolutionTestingSequence() shouldBe live.formatSolutionTestingSequence()
+                diverged.isEmpty() shouldBe live.succeeded
+            }
+        }
+        "should not share replayed results between submissions" {
+            val klass = examples.java.noreceiver.returnsarray.Correct::class.java
+            val solution = solution(klass)
+            val settings = Settings(seed = 124, shrink = false, testCount = 8)
+            val transcript = solution.recordTranscript(settings)
+            repeat(2) {
+                solution.submission(klass).test(settings, transcript = transcript).also {
+                    it.succeeded shouldBe true
+                    it.statistics.replayedSolutionSteps shouldBe it.size
+                    it.forEach { result -> (result.solution.returned as IntArray).fill(0) }
+                }
+            }
+        }
+        "should reject transcripts recorded with different settings" {
+            val solution = solution(examples.java.noreceiver.addone.Correct::class.java)
+            val transcript = solution.recordTranscript(Settings(seed = 124, shrink = false, testCount = 32))
+            shouldThrow<IllegalArgumentException> {
+                solution.submission(examples.java.noreceiver.addone.Correct::class.java).test(
+                    Settings(seed = 125, shrink = false, testCount = 32),
+                    transcript = transcript,
+                )
+            }
+        }
+    })
@@ -0,0 +1,13 @@
+package examples.java.noreceiver.printsforever;
+
+public class Incorrect0 {
+  @SuppressWarnings("InfiniteLoopStatement")
+  public static void print(int value) {
+    while (true) {
+      try {
+        System.out.println(value);
+      } catch (Exception ignored) {
+      }
+    }
+  }
+}
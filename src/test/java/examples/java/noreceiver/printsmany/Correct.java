@@ -0,0 +1,9 @@
+package examples.java.noreceiver.printsmany;
+
+public class Correct {
+  public static void print(int value) {
+    for (int i = 0; i < 64; i++) {
+      System.out.println(value + i);
+    }
+  }
+}
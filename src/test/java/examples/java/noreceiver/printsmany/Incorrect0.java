@@ -0,0 +1,10 @@
+package examples.java.noreceiver.printsmany;
+
+public class Incorrect0 {
+  public static void print(int value) {
+    for (int i = 0; i < 63; i++) {
+      System.out.println(value + i);
+    }
+    System.out.println(value);
+  }
+}
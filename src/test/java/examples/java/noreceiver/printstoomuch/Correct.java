@@ -0,0 +1,7 @@
+package examples.java.noreceiver.printstoomuch;
+
+public class Correct {
+  public static void print(int value) {
+    System.out.println(value);
+  }
+}
@@ -0,0 +1,9 @@
+package examples.java.noreceiver.printstoomuch;
+
+public class Incorrect0 {
+  public static void print(int value) {
+    for (int i = 0; i < 4096; i++) {
+      System.out.println(value);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package examples.java.noreceiver.writehelloworld;
+
+import edu.illinois.cs.cs125.jenisol.core.EdgeType;
+import edu.illinois.cs.cs125.jenisol.core.InputOutput;
+import edu.illinois.cs.cs125.jenisol.core.ProvideFileSystem;
+import edu.illinois.cs.cs125.jenisol.core.RandomType;
+import edu.illinois.cs.cs125.jenisol.core.SimpleType;
+import edu.illinois.cs.cs125.jenisol.core.generators.JenisolFileSystem;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+public class Correct {
+  @ProvideFileSystem
+  public static void test() throws IOException {
+    FileSystem fileSystem = InputOutput.filesystem.get();
+    String greeting = Files.readString(fileSystem.getPath("/testing.txt"));
+    Files.writeString(fileSystem.getPath("/output.txt"), greeting.toUpperCase());
+  }
+
+  @SimpleType
+  private static final JenisolFileSystem[] SIMPLE =
+      new JenisolFileSystem[] {
+        new JenisolFileSystem(
+            Map.of("/testing.txt", "Hello, world!".getBytes(StandardCharsets.UTF_8)))
+      };
+
+  @EdgeType private static final JenisolFileSystem[] EDGE = new JenisolFileSystem[] {};
+
+  @RandomType
+  private static JenisolFileSystem randomInput(Random random) {
+    return new JenisolFileSystem(
+        Map.of("/testing.txt", ("hello " + random.nextInt()).getBytes(StandardCharsets.UTF_8)));
+  }
+}
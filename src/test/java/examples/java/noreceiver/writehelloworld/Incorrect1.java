@@ -0,0 +1,14 @@
+package examples.java.noreceiver.writehelloworld;
+
+import edu.illinois.cs.cs125.jenisol.core.InputOutput;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+
+public class Incorrect1 {
+  public static void test() throws IOException {
+    FileSystem fileSystem = InputOutput.filesystem.get();
+    String greeting = Files.readString(fileSystem.getPath("/testing.txt"));
+    Files.writeString(fileSystem.getPath("/work/output.txt"), greeting.toUpperCase());
+  }
+}